@@ -0,0 +1,237 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stub Hadoop contexts, so the mappers and reducers run in a benchmark exactly as in a task
+ * but without a job: written records go to a Blackhole (or are collected, to build the input
+ * of the next step) and counters to an in-memory Counters.
+ */
+class BenchmarkContexts {
+    private static final TaskAttemptID MAP_TASK = new TaskAttemptID("benchmark", 1, TaskType.MAP, 0, 0);
+    private static final TaskAttemptID REDUCE_TASK = new TaskAttemptID("benchmark", 1, TaskType.REDUCE, 0, 0);
+
+    static <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context mapContext(Configuration conf, RecordReader<KI, VI> reader,
+                                                                      RecordWriter<KO, VO> writer)
+            throws IOException, InterruptedException {
+        MapContextImpl<KI, VI, KO, VO> context = new MapContextImpl<>(conf, MAP_TASK, reader,
+                writer, null, new CountersReporter(), null);
+        return new WrappedMapper<KI, VI, KO, VO>().getMapContext(context);
+    }
+
+    /**
+     * A reduce context over pre-serialized, sorted records, see SortedRecords.
+     * Reducer.run(context) then gets every group as the framework would hand it over.
+     */
+    static <KI, VI, KO, VO> Reducer<KI, VI, KO, VO>.Context reduceContext(Configuration conf, SortedRecords records,
+                                                                           RawComparator<KI> grouping,
+                                                                           Class<KI> keyClass, Class<VI> valueClass,
+                                                                           RecordWriter<KO, VO> writer)
+            throws IOException, InterruptedException {
+        CountersReporter reporter = new CountersReporter();
+        ReduceContextImpl<KI, VI, KO, VO> context = new ReduceContextImpl<>(conf, REDUCE_TASK, records.iterator(),
+                reporter.getCounter(TaskCounter.REDUCE_INPUT_GROUPS), reporter.getCounter(TaskCounter.REDUCE_INPUT_RECORDS),
+                writer, null, reporter, grouping, keyClass, valueClass);
+        return new WrappedReducer<KI, VI, KO, VO>().getReducerContext(context);
+    }
+
+    /**
+     * Key value pairs serialized once and sorted with the job's sort comparator, replayed for every invocation.
+     */
+    static class SortedRecords {
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+
+        private byte[][] sortedKeys;
+        private byte[][] sortedValues;
+
+        void add(Writable key, Writable value) throws IOException {
+            keys.add(serialize(key));
+            values.add(serialize(value));
+        }
+
+        /** Collects everything written to it, the objects are serialized right away since tasks reuse them. */
+        <K extends Writable, V extends Writable> RecordWriter<K, V> writer() {
+            return new RecordWriter<K, V>() {
+                @Override
+                public void write(K key, V value) throws IOException {
+                    add(key, value);
+                }
+
+                @Override
+                public void close(TaskAttemptContext context) {
+                }
+            };
+        }
+
+        /** Reads the records in sorted order into reused instances, as the input of a map task. */
+        <K extends Writable, V extends Writable> RecordReader<K, V> reader(K key, V value) {
+            RawKeyValueIterator iterator = iterator();
+            return new RecordReader<K, V>() {
+                @Override
+                public void initialize(InputSplit split, TaskAttemptContext context) {
+                }
+
+                @Override
+                public boolean nextKeyValue() throws IOException {
+                    if (!iterator.next()) {
+                        return false;
+                    }
+                    key.readFields(iterator.getKey());
+                    value.readFields(iterator.getValue());
+                    return true;
+                }
+
+                @Override
+                public K getCurrentKey() {
+                    return key;
+                }
+
+                @Override
+                public V getCurrentValue() {
+                    return value;
+                }
+
+                @Override
+                public float getProgress() {
+                    return 0;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        void sort(RawComparator<?> comparator) {
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                byte[] x = keys.get(a);
+                byte[] y = keys.get(b);
+                return comparator.compare(x, 0, x.length, y, 0, y.length);
+            });
+            sortedKeys = new byte[order.length][];
+            sortedValues = new byte[order.length][];
+            for (int i = 0; i < order.length; i++) {
+                sortedKeys[i] = keys.get(order[i]);
+                sortedValues[i] = values.get(order[i]);
+            }
+        }
+
+        int size() {
+            return sortedKeys.length;
+        }
+
+        RawKeyValueIterator iterator() {
+            return new RawKeyValueIterator() {
+                private final DataInputBuffer key = new DataInputBuffer();
+                private final DataInputBuffer value = new DataInputBuffer();
+                private final Progress progress = new Progress();
+                private int next = 0;
+
+                @Override
+                public DataInputBuffer getKey() {
+                    return key;
+                }
+
+                @Override
+                public DataInputBuffer getValue() {
+                    return value;
+                }
+
+                @Override
+                public boolean next() {
+                    if (next == sortedKeys.length) {
+                        return false;
+                    }
+                    key.reset(sortedKeys[next], sortedKeys[next].length);
+                    value.reset(sortedValues[next], sortedValues[next].length);
+                    next++;
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public Progress getProgress() {
+                    return progress;
+                }
+            };
+        }
+
+        private byte[] serialize(Writable writable) throws IOException {
+            buffer.reset();
+            writable.write(buffer);
+            return Arrays.copyOf(buffer.getData(), buffer.getLength());
+        }
+    }
+
+    /**
+     * Passes the written records to the Blackhole of the running benchmark method, set with use().
+     */
+    static class BlackholeWriter<K, V> extends RecordWriter<K, V> {
+        private Blackhole blackhole;
+
+        void use(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(K key, V value) {
+            blackhole.consume(key);
+            blackhole.consume(value);
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+
+    static class CountersReporter extends StatusReporter {
+        private final Counters counters = new Counters();
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark inputs. Every step's input is produced by running the real mappers and reducers of the
+ * previous steps over the same lines, so the record shapes and sizes match a pipeline run.
+ *
+ * Lines are either synthetic (Zipf-like pseudo-words, fixed seed) or small-sample.txt repeated,
+ * the file is read from the benchmark.sample system property (default small-sample.txt).
+ */
+class BenchmarkData {
+    static final int LINES = 10_000;
+    static final int WORDS = 4_096;
+
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "ne", "ru", "sa", "ti", "vo", "be", "dra", "pen", "gu"};
+    private static final String[] SUFFIXES = {"", "", "s", "ing", "ed", "ation", "ness", "ly", "ies", "ful"};
+    private static final String[] POS = {"NN", "NNS", "VB", "VBD", "JJ", "IN", "RB", "DT"};
+    private static final String[] LABELS = {"nsubj", "dobj", "amod", "prep", "pobj", "det", "advmod", "conj", "dep"};
+    private static final int VOCABULARY = 20_000;
+    private static final long SEED = 42;
+
+    final Configuration conf = new Configuration();
+    final List<Text> lines;
+
+    /** Step1 map output, not combined, and Step1 output: the summed l, f and lf counts. */
+    final BenchmarkContexts.SortedRecords step1Input;
+    final BenchmarkContexts.SortedRecords step1Output;
+
+    final BenchmarkContexts.SortedRecords step2Input;
+    final BenchmarkContexts.SortedRecords step3Input;
+    final BenchmarkContexts.SortedRecords step4Input;
+
+    BenchmarkData(String source) throws Exception {
+        lines = source.equals("sample") ? sampleLines() : syntheticLines();
+        conf.set(GoldStandard.PATH_KEY, goldStandard(lines).toURI().toString());
+
+        // Step1, without in-mapper combining so the reducer input has every record
+        step1Input = new BenchmarkContexts.SortedRecords();
+        Mapper<LongWritable, Text, CountKey, VLongWritable>.Context mapContext =
+                BenchmarkContexts.mapContext(conf, null, step1Input.writer());
+        Step1.MapperClass mapper = new Step1.MapperClass();
+        mapper.setup(mapContext);
+        LongWritable offset = new LongWritable();
+        for (Text line : lines) {
+            mapper.map(offset, line, mapContext);
+        }
+        mapper.cleanup(mapContext);
+        conf.setLong("L", mapContext.getCounter("TotalCounters", "L").getValue());
+        conf.setLong("F", mapContext.getCounter("TotalCounters", "F").getValue());
+
+        step1Input.sort(WritableComparator.get(CountKey.class));
+        step1Output = reduce(new Step1.ReducerClass(), step1Input, WritableComparator.get(CountKey.class),
+                CountKey.class, VLongWritable.class);
+        step1Output.sort(WritableComparator.get(CountKey.class));
+
+        // Step2
+        step2Input = new BenchmarkContexts.SortedRecords();
+        map(new Step2.MapperClass(), step1Output, new CountKey(), new VLongWritable(), step2Input);
+        step2Input.sort(WritableComparator.get(JoinKey.class));
+
+        // Step3
+        step3Input = reduce(new Step2.ReducerClass(), step2Input, new JoinKey.GroupingComparator(),
+                JoinKey.class, CountRecord.class);
+        step3Input.sort(WritableComparator.get(LexemeFeatureKey.class));
+
+        // Step4
+        BenchmarkContexts.SortedRecords step3Output = reduce(new Step3.ReducerClass<LexemeFeatureKey>(), step3Input,
+                WritableComparator.get(LexemeFeatureKey.class), LexemeFeatureKey.class, MarginalCount.class);
+        step3Output.sort(WritableComparator.get(LexemeFeatureKey.class));
+        step4Input = new BenchmarkContexts.SortedRecords();
+        map(new Step4.MapperClass<LexemeFeatureKey>(), step3Output, new LexemeFeatureKey(), new AssocVector(), step4Input);
+        step4Input.sort(new Step4.CompositeKeyComparator());
+
+        System.out.println("[INFO] " + source + ": lines " + lines.size() + ", step1 " + step1Input.size()
+                + ", step2 " + step2Input.size() + ", step3 " + step3Input.size() + ", step4 " + step4Input.size());
+    }
+
+    /**
+     * Raw words with a Zipf-like distribution, as they appear in the corpus.
+     */
+    static List<String> words() {
+        Random random = new Random(SEED);
+        List<String> words = new ArrayList<>(WORDS);
+        for (int i = 0; i < WORDS; i++) {
+            words.add(word(rank(random)));
+        }
+        return words;
+    }
+
+    private <KI extends Writable, VI extends Writable, KO extends Writable, VO extends Writable> void map(
+            Mapper<KI, VI, KO, VO> mapper, BenchmarkContexts.SortedRecords input, KI key, VI value,
+            BenchmarkContexts.SortedRecords output) throws Exception {
+        mapper.run(BenchmarkContexts.mapContext(conf, input.reader(key, value), output.<KO, VO>writer()));
+    }
+
+    private <KI, VI, KO extends Writable, VO extends Writable> BenchmarkContexts.SortedRecords reduce(
+            Reducer<KI, VI, KO, VO> reducer, BenchmarkContexts.SortedRecords input, RawComparator<KI> grouping,
+            Class<KI> keyClass, Class<VI> valueClass) throws Exception {
+        BenchmarkContexts.SortedRecords output = new BenchmarkContexts.SortedRecords();
+        reducer.run(BenchmarkContexts.reduceContext(conf, input, grouping, keyClass, valueClass, output.<KO, VO>writer()));
+        return output;
+    }
+
+    private static List<Text> syntheticLines() {
+        Random random = new Random(SEED);
+        List<Text> lines = new ArrayList<>(LINES);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            int tokens = 2 + random.nextInt(4);
+            int head = random.nextInt(tokens);
+            line.setLength(0);
+            line.append(word(rank(random))).append('\t');
+            for (int t = 0; t < tokens; t++) {
+                if (t > 0) {
+                    line.append(' ');
+                }
+                int pointer = t == head ? 0 : head + 1;
+                line.append(word(rank(random))).append('/')
+                        .append(POS[random.nextInt(POS.length)]).append('/')
+                        .append(LABELS[random.nextInt(LABELS.length)]).append('/')
+                        .append(pointer);
+            }
+            int count = 10 + random.nextInt(5000);
+            line.append('\t').append(count).append('\t').append("2000,").append(count);
+            lines.add(new Text(line.toString()));
+        }
+        return lines;
+    }
+
+    private static List<Text> sampleLines() throws IOException {
+        List<String> sample = Files.readAllLines(Paths.get(System.getProperty("benchmark.sample", "small-sample.txt")),
+                StandardCharsets.UTF_8);
+        List<Text> lines = new ArrayList<>(LINES);
+        for (int i = 0; i < LINES; i++) {
+            lines.add(new Text(sample.get(i % sample.size())));
+        }
+        return lines;
+    }
+
+    /**
+     * Gold standard pairs over the most frequent words of the lines, so Step4 keeps a realistic share of the records.
+     */
+    private static File goldStandard(List<Text> lines) throws IOException {
+        Map<String, Integer> frequency = new HashMap<>();
+        for (Text line : lines) {
+            String[] tokens = line.toString().split("\t")[1].split(" ");
+            for (String token : tokens) {
+                int slash = token.indexOf('/');
+                if (slash > 0) {
+                    frequency.merge(token.substring(0, slash), 1, Integer::sum);
+                }
+            }
+        }
+        List<String> words = new ArrayList<>(frequency.keySet());
+        words.sort((a, b) -> frequency.get(b) - frequency.get(a));
+        words = words.subList(0, Math.min(300, words.size()));
+
+        File file = File.createTempFile("benchmark-gold", ".txt");
+        file.deleteOnExit();
+        Random random = new Random(SEED);
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            for (int i = 0; i < 200; i++) {
+                writer.println(words.get(random.nextInt(words.size())) + "\t" + words.get(random.nextInt(words.size()))
+                        + "\t" + random.nextBoolean());
+            }
+        }
+        return file;
+    }
+
+    private static int rank(Random random) {
+        double r = random.nextDouble();
+        return (int) (VOCABULARY * r * r * r);
+    }
+
+    private static String word(int rank) {
+        StringBuilder word = new StringBuilder();
+        int n = rank;
+        do {
+            word.append(SYLLABLES[n % SYLLABLES.length]);
+            n /= SYLLABLES.length;
+        } while (n > 0);
+        return word.append(SUFFIXES[rank % SUFFIXES.length]).toString();
+    }
+}
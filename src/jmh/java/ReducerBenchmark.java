@@ -0,0 +1,70 @@
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.io.WritableComparator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+///
+/// The Step1 to Step4 reducers over the sorted, serialized output of the previous step's mapper,
+/// run through Reducer.run so grouping and value deserialization are measured as in a reduce task.
+///
+/// One operation is a whole batch, the record counts per batch are printed at setup.
+///
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReducerBenchmark {
+
+    @Param({"synthetic", "sample"})
+    public String source;
+
+    private BenchmarkData data;
+    private final BenchmarkContexts.BlackholeWriter<Object, Object> writer = new BenchmarkContexts.BlackholeWriter<>();
+
+    private final Step1.ReducerClass step1 = new Step1.ReducerClass();
+    private final Step2.ReducerClass step2 = new Step2.ReducerClass();
+    private final Step3.ReducerClass<LexemeFeatureKey> step3 = new Step3.ReducerClass<>();
+    private final Step4.ReducerClass step4 = new Step4.ReducerClass();
+
+    @Setup
+    public void setup() throws Exception {
+        data = new BenchmarkData(source);
+    }
+
+    @Benchmark
+    public void step1Reduce(Blackhole blackhole) throws Exception {
+        writer.use(blackhole);
+        step1.run(BenchmarkContexts.reduceContext(data.conf, data.step1Input, WritableComparator.get(CountKey.class),
+                CountKey.class, VLongWritable.class, writer()));
+    }
+
+    @Benchmark
+    public void step2Reduce(Blackhole blackhole) throws Exception {
+        writer.use(blackhole);
+        step2.run(BenchmarkContexts.reduceContext(data.conf, data.step2Input, new JoinKey.GroupingComparator(),
+                JoinKey.class, CountRecord.class, writer()));
+    }
+
+    @Benchmark
+    public void step3Reduce(Blackhole blackhole) throws Exception {
+        writer.use(blackhole);
+        step3.run(BenchmarkContexts.reduceContext(data.conf, data.step3Input, WritableComparator.get(LexemeFeatureKey.class),
+                LexemeFeatureKey.class, MarginalCount.class, writer()));
+    }
+
+    @Benchmark
+    public void step4Reduce(Blackhole blackhole) throws Exception {
+        writer.use(blackhole);
+        step4.run(BenchmarkContexts.reduceContext(data.conf, data.step4Input, new Step4.OriginalKeyGroupingComparator(),
+                Step4.CompositeKey.class, AssocVector.class, writer()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K, V> BenchmarkContexts.BlackholeWriter<K, V> writer() {
+        return (BenchmarkContexts.BlackholeWriter<K, V>) (BenchmarkContexts.BlackholeWriter<?, ?>) writer;
+    }
+}
@@ -0,0 +1,48 @@
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+///
+/// Stemming per word: Stemmer.stemWord, and the byte level StemCache Step1 uses.
+///
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StemmerBenchmark {
+
+    private List<String> words;
+    private byte[][] wordBytes;
+    private StemCache cache;
+
+    @Setup
+    public void setup() {
+        words = BenchmarkData.words();
+        wordBytes = new byte[words.size()][];
+        for (int i = 0; i < wordBytes.length; i++) {
+            wordBytes[i] = words.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        cache = new StemCache(StemCache.DEFAULT_SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.WORDS)
+    public void stemWord(Blackhole blackhole) {
+        for (String word : words) {
+            blackhole.consume(Stemmer.stemWord(word));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.WORDS)
+    public void stemCache(Blackhole blackhole) {
+        for (byte[] word : wordBytes) {
+            blackhole.consume(cache.stem(word, 0, word.length));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+///
+/// Step1.MapperClass.map per input line, with and without in-mapper combining.
+/// With combining the map is flushed (and emptied) whenever it passes step1.combine.maxBytes, as in a task.
+///
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Step1MapperBenchmark {
+
+    @Param({"synthetic", "sample"})
+    public String source;
+
+    @Param({"false", "true"})
+    public boolean combine;
+
+    private List<Text> lines;
+    private Step1.MapperClass mapper;
+    private Mapper<LongWritable, Text, CountKey, VLongWritable>.Context context;
+    private final BenchmarkContexts.BlackholeWriter<CountKey, VLongWritable> writer = new BenchmarkContexts.BlackholeWriter<>();
+    private final LongWritable offset = new LongWritable();
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkData data = new BenchmarkData(source);
+        lines = data.lines;
+        data.conf.setBoolean(Step1.COMBINE_KEY, combine);
+
+        mapper = new Step1.MapperClass();
+        context = BenchmarkContexts.mapContext(data.conf, null, writer);
+        mapper.setup(context);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.LINES)
+    public void map(Blackhole blackhole) throws Exception {
+        writer.use(blackhole);
+        for (Text line : lines) {
+            mapper.map(offset, line, context);
+        }
+    }
+}
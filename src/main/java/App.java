@@ -9,6 +9,9 @@ import com.amazonaws.services.elasticmapreduce.AmazonElasticMapReduce;
 import com.amazonaws.services.elasticmapreduce.AmazonElasticMapReduceClientBuilder;
 import com.amazonaws.services.elasticmapreduce.model.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class App {
     public static AWSCredentialsProvider credentialsProvider;
     public static AmazonS3 S3;
@@ -30,6 +33,38 @@ public class App {
 //    public static String goldStandardFileName = "/word-relatedness.txt";
      public static String goldStandardFileName = "/test_gold_standard.txt";
 
+    // Run Steps 2-4 on dictionary ids instead of strings (see DictionaryStep)
+    public static boolean useIds = false;
+    public static String dictionaryFolder = "/dictionary_small_test/";
+
+    // Only count the gold standard lexemes in Step1 (feature counts and totals stay global)
+    public static boolean goldPruned = false;
+
+    // Replace Steps 2 and 3 with MarginalJoinStep (string keys, needs the dictionary)
+    public static boolean useMarginalJoin = false;
+
+    // Replace Step4 with VectorStep (one sparse vector per gold word, needs the dictionary)
+    public static boolean useSparseVectors = false;
+
+    // Also write the top K most similar lexemes of every lexeme with TopKStep (needs the dictionary)
+    public static boolean runTopK = false;
+
+    // Also write candidate similar pairs from MinHash/SimHash signatures with SignatureStep (needs the dictionary)
+    public static boolean runSignatures = false;
+
+    // Convert the input once with IngestStep into splittable SequenceFiles (see step1.splitSize).
+    // useIngestedInput makes Step1 read the converted files, runIngest can be turned off once they exist
+    public static boolean runIngest = false;
+    public static boolean useIngestedInput = false;
+    public static String ingestedFolder = "/ingested_small_test/";
+
+    // Split the features of every gold pair into this many ranges in Step4, reduced apart and merged by a second job
+    public static int step4Salts = 1;
+
+    // Step5: evaluate (10-fold cross-validation), train (save a model built on all the pairs)
+    // or score (classify Step4's output with the model saved by an earlier train run)
+    public static String step5Mode = "evaluate";
+
 
     public static void main(String[] args) {
         credentialsProvider = new ProfileCredentialsProvider();
@@ -47,6 +82,21 @@ public class App {
                 .withRegion("us-east-1")
                 .build();
 
+        // Raw input to SequenceFiles (only used when runIngest is set)
+        HadoopJarStepConfig ingestStep = new HadoopJarStepConfig()
+                .withJar("s3://" + jarBucketName + jarFolderName + "IngestStep.jar")
+                .withMainClass("IngestStep")
+                .withArgs(jarBucketName,
+                        // "s3://" + dataBucketName,
+//                        "s3://" + dataBucketName + inputDataFolder,
+                        "s3://" + jarBucketName + "/input-samples/",
+                        "s3://" + jarBucketName + ingestedFolder);
+
+        StepConfig stepConfigIngest = new StepConfig()
+                .withName("IngestStep")
+                .withHadoopJarStep(ingestStep)
+                .withActionOnFailure("TERMINATE_JOB_FLOW");
+
         // Step 1
         HadoopJarStepConfig step1 = new HadoopJarStepConfig()
                 .withJar("s3://" + jarBucketName + jarFolderName + "Step1.jar")
@@ -54,21 +104,45 @@ public class App {
                 .withArgs(jarBucketName,
                         // "s3://" + dataBucketName,
 //                        "s3://" + dataBucketName + inputDataFolder,
-                         "s3://" + jarBucketName + "/input-samples/",
-                        "s3://" + jarBucketName + "/step1_output_small_test/");
+                        useIngestedInput ? "s3://" + jarBucketName + ingestedFolder
+                                : "s3://" + jarBucketName + "/input-samples/",
+                        "s3://" + jarBucketName + "/step1_output_small_test/",
+                        "step1.combine.inMapper=true",
+                        Step1.INPUT_KEY + "=" + (useIngestedInput ? "sequence" : "text"),
+                        GoldStandard.PRUNE_KEY + "=" + goldPruned,
+                        GoldStandard.PATH_KEY + "=s3://" + jarBucketName + goldStandardFileName);
 
         StepConfig stepConfig1 = new StepConfig()
                 .withName("Step1")
                 .withHadoopJarStep(step1)
                 .withActionOnFailure("TERMINATE_JOB_FLOW");
 
+        // Dictionary (only used when useIds is set)
+        HadoopJarStepConfig dictionaryStep = new HadoopJarStepConfig()
+                .withJar("s3://" + jarBucketName + jarFolderName + "DictionaryStep.jar")
+                .withMainClass("DictionaryStep")
+                .withArgs(jarBucketName,
+                        "s3://" + jarBucketName + "/step1_output_small_test/",
+                        "s3://" + jarBucketName + dictionaryFolder);
+
+        StepConfig stepConfigDictionary = new StepConfig()
+                .withName("DictionaryStep")
+                .withHadoopJarStep(dictionaryStep)
+                .withActionOnFailure("TERMINATE_JOB_FLOW");
+
+        // MarginalJoinStep writes string keys, so Step4 can't run on ids after it
+        String idsOption = DictionaryStep.IDS_KEY + "=" + (useIds && !useMarginalJoin);
+        String dictionaryOption = DictionaryStep.DICTIONARY_KEY + "=s3://" + jarBucketName + dictionaryFolder;
+
         // Step 2
         HadoopJarStepConfig step2 = new HadoopJarStepConfig()
                 .withJar("s3://" + jarBucketName + jarFolderName + "Step2.jar")
                 .withMainClass("Step2")
                 .withArgs(jarBucketName,
                         "s3://" + jarBucketName + "/step1_output_small_test/",
-                        "s3://" + jarBucketName + "/step2_output_small_test/");
+                        "s3://" + jarBucketName + "/step2_output_small_test/",
+                        idsOption,
+                        dictionaryOption);
 
         StepConfig stepConfig2 = new StepConfig()
                 .withName("Step2")
@@ -81,13 +155,28 @@ public class App {
                 .withMainClass("Step3")
                 .withArgs(jarBucketName,
                         "s3://" + jarBucketName + "/step2_output_small_test/",
-                        "s3://" + jarBucketName + "/step3_output_small_test/");
+                        "s3://" + jarBucketName + "/step3_output_small_test/",
+                        idsOption);
 
         StepConfig stepConfig3 = new StepConfig()
                 .withName("Step3")
                 .withHadoopJarStep(step3)
                 .withActionOnFailure("TERMINATE_JOB_FLOW");
 
+        // Steps 2 + 3 in one job (only used when useMarginalJoin is set)
+        HadoopJarStepConfig marginalJoinStep = new HadoopJarStepConfig()
+                .withJar("s3://" + jarBucketName + jarFolderName + "MarginalJoinStep.jar")
+                .withMainClass("MarginalJoinStep")
+                .withArgs(jarBucketName,
+                        "s3://" + jarBucketName + "/step1_output_small_test/",
+                        "s3://" + jarBucketName + "/step3_output_small_test/",
+                        "s3://" + jarBucketName + dictionaryFolder);
+
+        StepConfig stepConfigMarginalJoin = new StepConfig()
+                .withName("MarginalJoinStep")
+                .withHadoopJarStep(marginalJoinStep)
+                .withActionOnFailure("TERMINATE_JOB_FLOW");
+
         // Step 4
         HadoopJarStepConfig step4 = new HadoopJarStepConfig()
                 .withJar("s3://" + jarBucketName + jarFolderName + "Step4.jar")
@@ -95,20 +184,73 @@ public class App {
                 .withArgs(jarBucketName,
                         "s3://" + jarBucketName + "/step3_output_small_test/",
                         "s3://" + jarBucketName + "/step4_output_small_test/",
-                        "s3://" + jarBucketName + goldStandardFileName);
+                        "s3://" + jarBucketName + goldStandardFileName,
+                        idsOption,
+                        dictionaryOption,
+                        Step4.SALTS_KEY + "=" + step4Salts);
 
         StepConfig stepConfig4 = new StepConfig()
                 .withName("Step4")
                 .withHadoopJarStep(step4)
                 .withActionOnFailure("TERMINATE_JOB_FLOW");
 
+        // Top K similar lexemes (only used when runTopK is set)
+        HadoopJarStepConfig topKStep = new HadoopJarStepConfig()
+                .withJar("s3://" + jarBucketName + jarFolderName + "TopKStep.jar")
+                .withMainClass("TopKStep")
+                .withArgs(jarBucketName,
+                        "s3://" + jarBucketName + "/step3_output_small_test/",
+                        "s3://" + jarBucketName + "/topk_work_small_test/",
+                        "s3://" + jarBucketName + "/topk_output_small_test/",
+                        "s3://" + jarBucketName + dictionaryFolder,
+                        idsOption);
+
+        StepConfig stepConfigTopK = new StepConfig()
+                .withName("TopKStep")
+                .withHadoopJarStep(topKStep)
+                .withActionOnFailure("TERMINATE_JOB_FLOW");
+
+        // Similar pairs from signatures (only used when runSignatures is set)
+        HadoopJarStepConfig signatureStep = new HadoopJarStepConfig()
+                .withJar("s3://" + jarBucketName + jarFolderName + "SignatureStep.jar")
+                .withMainClass("SignatureStep")
+                .withArgs(jarBucketName,
+                        "s3://" + jarBucketName + "/step3_output_small_test/",
+                        "s3://" + jarBucketName + "/signature_work_small_test/",
+                        "s3://" + jarBucketName + "/signature_output_small_test/",
+                        "s3://" + jarBucketName + dictionaryFolder,
+                        idsOption);
+
+        StepConfig stepConfigSignatures = new StepConfig()
+                .withName("SignatureStep")
+                .withHadoopJarStep(signatureStep)
+                .withActionOnFailure("TERMINATE_JOB_FLOW");
+
+        // Step 4 on sparse vectors (only used when useSparseVectors is set)
+        HadoopJarStepConfig vectorStep = new HadoopJarStepConfig()
+                .withJar("s3://" + jarBucketName + jarFolderName + "VectorStep.jar")
+                .withMainClass("VectorStep")
+                .withArgs(jarBucketName,
+                        "s3://" + jarBucketName + "/step3_output_small_test/",
+                        "s3://" + jarBucketName + "/vectors_output_small_test/",
+                        "s3://" + jarBucketName + "/step4_output_small_test/",
+                        "s3://" + jarBucketName + goldStandardFileName,
+                        "s3://" + jarBucketName + dictionaryFolder,
+                        idsOption);
+
+        StepConfig stepConfigVector = new StepConfig()
+                .withName("VectorStep")
+                .withHadoopJarStep(vectorStep)
+                .withActionOnFailure("TERMINATE_JOB_FLOW");
+
          // Step 5
          HadoopJarStepConfig step5 = new HadoopJarStepConfig()
                  .withJar("s3://" + jarBucketName + jarFolderName + "Step5.jar")
                  .withMainClass("Step5")
                  .withArgs(jarBucketName,
                          "step4_output_small_test/",
-                         "step5_output_small_test/");
+                         "step5_output_small_test/",
+                         Step5.MODE_KEY + "=" + step5Mode);
 
          StepConfig stepConfig5 = new StepConfig()
                  .withName("Step5")
@@ -125,11 +267,34 @@ public class App {
                 .withKeepJobFlowAliveWhenNoSteps(false)
                 .withPlacement(new PlacementType("us-east-1a"));
 
+        List<StepConfig> steps = new ArrayList<>();
+        if (runIngest) {
+            steps.add(stepConfigIngest);
+        }
+        steps.add(stepConfig1);
+        if (useIds || useMarginalJoin || useSparseVectors || runTopK || runSignatures) {
+            steps.add(stepConfigDictionary);
+        }
+        if (useMarginalJoin) {
+            steps.add(stepConfigMarginalJoin);
+        } else {
+            steps.add(stepConfig2);
+            steps.add(stepConfig3);
+        }
+        if (runTopK) {
+            steps.add(stepConfigTopK);
+        }
+        if (runSignatures) {
+            steps.add(stepConfigSignatures);
+        }
+        steps.add(useSparseVectors ? stepConfigVector : stepConfig4);
+        steps.add(stepConfig5);
+
         System.out.println("Set steps");
         RunJobFlowRequest runFlowRequest = new RunJobFlowRequest()
                 .withName("Map reduce project")
                 .withInstances(instances)
-                .withSteps(stepConfig1, stepConfig2,stepConfig3, stepConfig4, stepConfig5)
+                .withSteps(steps)
                 // .withSteps(stepConfig5)
                 .withLogUri("s3://" + jarBucketName + "/logs/")
                 .withServiceRole("EMR_DefaultRole")
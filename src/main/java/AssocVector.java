@@ -0,0 +1,77 @@
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The four association measures of a lexeme feature pair, in the order of the diff matrix rows:
+ * assoc_freq, assoc_prob, assoc_PMI, assoc_t_test.
+ */
+public class AssocVector implements Writable {
+    public static final int FREQ = 0;
+    public static final int PROB = 1;
+    public static final int PMI = 2;
+    public static final int T_TEST = 3;
+    public static final int SIZE = 4;
+
+    private final double[] values = new double[SIZE];
+
+    /**
+     * Index of a measure by its option name: freq, prob, pmi or t_test.
+     */
+    public static int measure(String name) {
+        switch (name.toLowerCase()) {
+            case "freq":
+                return FREQ;
+            case "prob":
+                return PROB;
+            case "pmi":
+                return PMI;
+            case "t_test":
+                return T_TEST;
+            default:
+                throw new IllegalArgumentException("Unknown association measure: " + name);
+        }
+    }
+
+    public void set(double freq, double prob, double pmi, double tTest) {
+        values[FREQ] = freq;
+        values[PROB] = prob;
+        values[PMI] = pmi;
+        values[T_TEST] = tTest;
+    }
+
+    public void set(AssocVector other) {
+        System.arraycopy(other.values, 0, values, 0, SIZE);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        for (int i = 0; i < SIZE; i++) {
+            values[i] = in.readDouble();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("assoc_freq=%s assoc_prob=%s assoc_PMI=%s assoc_t_test=%s",
+                values[FREQ], values[PROB], values[PMI], values[T_TEST]);
+    }
+
+    /** The backing array, indexed by FREQ, PROB, PMI and T_TEST. */
+    public double[] values() {
+        return values;
+    }
+
+    public double get(int measure) {
+        return values[measure];
+    }
+}
@@ -0,0 +1,29 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+/**
+ * A SequenceFile output that is BLOCK compressed with the job's codec whatever the job's compression type,
+ * for the named outputs of jobs whose MapFile output is RECORD compressed (SignatureStep's buckets,
+ * TopKStep's index): small records grow when they are deflated one by one.
+ */
+public class BlockSequenceFileOutputFormat<K, V> extends SequenceFileOutputFormat<K, V> {
+    @Override
+    protected SequenceFile.Writer getSequenceWriter(TaskAttemptContext context, Class<?> keyClass,
+                                                    Class<?> valueClass) throws IOException {
+        Configuration conf = context.getConfiguration();
+        CompressionCodec codec = ReflectionUtils.newInstance(getOutputCompressorClass(context, DefaultCodec.class), conf);
+        Path file = getDefaultWorkFile(context, "");
+        return SequenceFile.createWriter(conf, SequenceFile.Writer.file(file),
+                SequenceFile.Writer.keyClass(keyClass), SequenceFile.Writer.valueClass(valueClass),
+                SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK, codec),
+                SequenceFile.Writer.progressable(context));
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from a byte sequence to a long count.
+ * Keys are copied into one growing byte arena and the entries are kept in parallel primitive arrays,
+ * so adding to an existing key allocates nothing.
+ *
+ * Not thread safe, meant to be owned by a single task.
+ */
+class ByteCountMap {
+    private int[] slots;            // entry index + 1, 0 = empty
+    private int mask;
+
+    private byte[] arena = new byte[1 << 16];
+    private int arenaLength;
+
+    private int[] keyOffset = new int[1024];
+    private int[] keyLength = new int[1024];
+    private int[] keyHash = new int[1024];
+    private long[] counts = new long[1024];
+    private int size;
+
+    public ByteCountMap() {
+        slots = new int[4096];
+        mask = slots.length - 1;
+    }
+
+    public void add(byte[] bytes, int offset, int length, long delta) {
+        int hash = hash(bytes, offset, length);
+        int slot = hash & mask;
+        while (true) {
+            int entry = slots[slot] - 1;
+            if (entry < 0) {
+                break;
+            }
+            if (keyHash[entry] == hash && equals(entry, bytes, offset, length)) {
+                counts[entry] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int entry = newEntry(bytes, offset, length, hash);
+        counts[entry] = delta;
+        slots[slot] = entry + 1;
+
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * True if the key was added before, does not modify the map.
+     */
+    public boolean contains(byte[] bytes, int offset, int length) {
+        int hash = hash(bytes, offset, length);
+        int slot = hash & mask;
+        while (true) {
+            int entry = slots[slot] - 1;
+            if (entry < 0) {
+                return false;
+            }
+            if (keyHash[entry] == hash && equals(entry, bytes, offset, length)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rough size of the live entries in bytes, used to decide when to flush.
+     * Counts the key bytes, the per entry arrays and two slots per entry.
+     */
+    public long memoryBytes() {
+        return arenaLength + (long) size * (4 + 4 + 4 + 8 + 2 * 4);
+    }
+
+    public byte[] arena() {
+        return arena;
+    }
+
+    public int keyOffset(int entry) {
+        return keyOffset[entry];
+    }
+
+    public int keyLength(int entry) {
+        return keyLength[entry];
+    }
+
+    public long count(int entry) {
+        return counts[entry];
+    }
+
+    /**
+     * Drop all entries but keep the allocated arrays for reuse.
+     */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        arenaLength = 0;
+    }
+
+    private int newEntry(byte[] bytes, int offset, int length, int hash) {
+        if (size == counts.length) {
+            int capacity = size * 2;
+            keyOffset = Arrays.copyOf(keyOffset, capacity);
+            keyLength = Arrays.copyOf(keyLength, capacity);
+            keyHash = Arrays.copyOf(keyHash, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        if (arenaLength + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+        }
+        System.arraycopy(bytes, offset, arena, arenaLength, length);
+
+        int entry = size++;
+        keyOffset[entry] = arenaLength;
+        keyLength[entry] = length;
+        keyHash[entry] = hash;
+        arenaLength += length;
+        return entry;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = keyHash[entry] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+
+    private boolean equals(int entry, byte[] bytes, int offset, int length) {
+        if (keyLength[entry] != length) {
+            return false;
+        }
+        int start = keyOffset[entry];
+        for (int p = 0; p < length; p++) {
+            if (arena[start + p] != bytes[offset + p]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 1;
+        for (int p = offset; p < offset + length; p++) {
+            h = 31 * h + bytes[p];
+        }
+        // Spread the bits, the low ones pick the slot
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+}
@@ -0,0 +1,66 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineSequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+
+/**
+ * The input of Steps 2 to 4: the SequenceFile parts of the previous step, packed into splits of about
+ * pipeline.combine.splitSize bytes, so the number of map tasks follows the size of the input instead of
+ * the number of reducers of the previous step.
+ *
+ * The blocks of a split are taken from one node where possible, then from one rack, like CombineFileInputFormat
+ * does. pipeline.combine.splitSize=0 reads one split per file block again, with SequenceFileInputFormat.
+ */
+class CombinedInput {
+    public static final String SPLIT_SIZE_KEY = "pipeline.combine.splitSize";
+    public static final long DEFAULT_SPLIT_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Read the files matching path with the combined input format.
+     */
+    public static void addInputPath(Job job, Path path) throws IOException {
+        Configuration conf = job.getConfiguration();
+        long splitSize = conf.getLong(SPLIT_SIZE_KEY, DEFAULT_SPLIT_SIZE);
+        if (splitSize <= 0) {
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+        } else {
+            job.setInputFormatClass(CombineSequenceFileInputFormat.class);
+            conf.setLong(FileInputFormat.SPLIT_MAXSIZE, splitSize);
+            // Blocks left over on a node or rack still make a local split once they hold half the target size,
+            // only smaller leftovers are combined across racks
+            conf.setLong(CombineFileInputFormat.SPLIT_MINSIZE_PERNODE, splitSize / 2);
+            conf.setLong(CombineFileInputFormat.SPLIT_MINSIZE_PERRACK, splitSize / 2);
+        }
+        FileInputFormat.addInputPath(job, path);
+    }
+
+    /**
+     * The number of splits, so of map tasks, the input format of the job makes of its input.
+     * Lists the input again, the local job runner doesn't count launched maps.
+     */
+    public static int splits(Job job) throws IOException, InterruptedException {
+        InputFormat<?, ?> format;
+        try {
+            format = ReflectionUtils.newInstance(job.getInputFormatClass(), job.getConfiguration());
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        return format.getSplits(job).size();
+    }
+
+    /**
+     * Print the number of splits of the job.
+     */
+    public static void report(Job job) throws IOException, InterruptedException {
+        long splitSize = job.getConfiguration().getLong(SPLIT_SIZE_KEY, DEFAULT_SPLIT_SIZE);
+        System.out.println("[INFO] " + job.getJobName() + " read " + splits(job) + " splits"
+                + (splitSize > 0 ? " of up to " + (splitSize >> 20) + " MB" : " (one per block)"));
+    }
+}
@@ -0,0 +1,127 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Key of the l / f / lf counts.
+ *     l:  first = lexeme
+ *     f:  first = feature
+ *     lf: first = lexeme, second = feature (Step1) or first = lexeme or feature, second empty (Step2)
+ *
+ * Sorted by first, then type (l and f before lf), then second.
+ */
+public class CountKey implements WritableComparable<CountKey> {
+    public static final byte TYPE_L = 0;
+    public static final byte TYPE_F = 1;
+    public static final byte TYPE_LF = 2;
+
+    private byte type;
+    private final Text first = new Text();
+    private final Text second = new Text();
+
+    public CountKey() {
+    }
+
+    public CountKey(byte type, String first, String second) {
+        set(type, first, second);
+    }
+
+    public void set(byte type, String first, String second) {
+        this.type = type;
+        this.first.set(first);
+        this.second.set(second);
+    }
+
+    public void set(byte type, Text first, Text second) {
+        this.type = type;
+        this.first.set(first);
+        this.second.set(second);
+    }
+
+    public void set(byte type, byte[] bytes, int firstStart, int firstLength, int secondStart, int secondLength) {
+        this.type = type;
+        this.first.set(bytes, firstStart, firstLength);
+        this.second.set(bytes, secondStart, secondLength);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        first.write(out);
+        second.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        type = in.readByte();
+        first.readFields(in);
+        second.readFields(in);
+    }
+
+    @Override
+    public int compareTo(CountKey other) {
+        int cmp = first.compareTo(other.first);
+        if (cmp != 0) {
+            return cmp;
+        }
+        if (type != other.type) {
+            return type < other.type ? -1 : 1;
+        }
+        return second.compareTo(other.second);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CountKey && compareTo((CountKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return (first.hashCode() * 31 + type) * 31 + second.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        String prefix = type == TYPE_L ? "l" : type == TYPE_F ? "f" : "lf";
+        return second.getLength() == 0 ? prefix + " " + first : prefix + " " + first + " " + second;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public Text getFirst() {
+        return first;
+    }
+
+    public Text getSecond() {
+        return second;
+    }
+
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(CountKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = TextBytes.compare(b1, s1 + 1, b2, s2 + 1);
+            if (cmp != 0) {
+                return cmp;
+            }
+            if (b1[s1] != b2[s2]) {
+                return b1[s1] < b2[s2] ? -1 : 1;
+            }
+            int firstSize = TextBytes.size(b1, s1 + 1);
+            return TextBytes.compare(b1, s1 + 1 + firstSize, b2, s2 + 1 + firstSize);
+        }
+    }
+
+    static {
+        WritableComparator.define(CountKey.class, new Comparator());
+    }
+}
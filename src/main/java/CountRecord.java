@@ -0,0 +1,87 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A count travelling through Step2, either a marginal (type l or f) or an lf count with its lexeme and feature.
+ * A marginal replicated to several reducers (see SkewPlan) carries the index of its copy.
+ */
+public class CountRecord implements Writable {
+    private byte type;
+    private final Text lexeme = new Text();
+    private final Text feature = new Text();
+    private long count;
+    private int replica;
+
+    public void setMarginal(byte type, long count) {
+        setMarginal(type, count, 0);
+    }
+
+    public void setMarginal(byte type, long count, int replica) {
+        this.type = type;
+        this.lexeme.clear();
+        this.feature.clear();
+        this.count = count;
+        this.replica = replica;
+    }
+
+    public void setPair(Text lexeme, Text feature, long count) {
+        this.type = CountKey.TYPE_LF;
+        this.lexeme.set(lexeme);
+        this.feature.set(feature);
+        this.count = count;
+        this.replica = 0;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(type);
+        if (type == CountKey.TYPE_LF) {
+            lexeme.write(out);
+            feature.write(out);
+        } else {
+            WritableUtils.writeVInt(out, replica);
+        }
+        WritableUtils.writeVLong(out, count);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        type = in.readByte();
+        if (type == CountKey.TYPE_LF) {
+            lexeme.readFields(in);
+            feature.readFields(in);
+            replica = 0;
+        } else {
+            lexeme.clear();
+            feature.clear();
+            replica = WritableUtils.readVInt(in);
+        }
+        count = WritableUtils.readVLong(in);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public Text getLexeme() {
+        return lexeme;
+    }
+
+    public Text getFeature() {
+        return feature;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /** Which copy of a replicated marginal this is, 0 otherwise. */
+    public int getReplica() {
+        return replica;
+    }
+}
@@ -0,0 +1,135 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+///
+/// Optional step between Step1 and Step2: assigns dense int ids to lexemes and features.
+///
+/// Writes two WordTable files, lexemes.table and features.table, holding the sorted words and their counts.
+/// The id of a word is its index in the table. With pipeline.ids=true and pipeline.dictionary=<output of this step>,
+/// Steps 2 to 4 key everything by ids and only Step4 turns the ids of the gold-standard words back into words.
+///
+public class DictionaryStep {
+    public static final String IDS_KEY = "pipeline.ids";
+    public static final String DICTIONARY_KEY = "pipeline.dictionary";
+
+    public static final String LEXEMES = "lexemes.table";
+    public static final String FEATURES = "features.table";
+
+    ///
+    /// input: <key, value>: key = CountKey(l, lexeme) or CountKey(f, feature) or CountKey(lf, lexeme, feature),
+    ///                      value = count
+    ///
+    /// output: <key, value>: key = CountKey(l, lexeme) or CountKey(f, feature),
+    ///                       value = count
+    ///
+    public static class MapperClass extends Mapper<CountKey, VLongWritable, CountKey, VLongWritable> {
+
+        @Override
+        public void map(CountKey key, VLongWritable count, Context context) throws IOException, InterruptedException {
+            if (key.getType() != CountKey.TYPE_LF) {
+                context.write(key, count);
+            }
+        }
+    }
+
+    ///
+    /// Single reducer, the keys arrive sorted so each table is written in order.
+    ///
+    /// input: <key, value>: key = CountKey(l, lexeme) or CountKey(f, feature),
+    ///                      value = count
+    ///
+    /// output: lexemes.table and features.table in the task's output directory
+    ///
+    public static class ReducerClass extends Reducer<CountKey, VLongWritable, CountKey, VLongWritable> {
+        private WordTable.Writer lexemes;
+        private WordTable.Writer features;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Path dir = FileOutputFormat.getWorkOutputPath(context);
+            FileSystem fs = dir.getFileSystem(context.getConfiguration());
+            lexemes = new WordTable.Writer(fs.create(new Path(dir, LEXEMES), true));
+            features = new WordTable.Writer(fs.create(new Path(dir, FEATURES), true));
+        }
+
+        @Override
+        public void reduce(CountKey key, Iterable<VLongWritable> values, Context context) throws IOException, InterruptedException {
+            long acc = 0;
+            for (VLongWritable value : values) {
+                acc += value.get();
+            }
+
+            WordTable.Writer table = key.getType() == CountKey.TYPE_L ? lexemes : features;
+            table.add(key.getFirst().getBytes(), 0, key.getFirst().getLength(), acc);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            context.getCounter("Dictionary", "LEXEMES").increment(lexemes.size());
+            context.getCounter("Dictionary", "FEATURES").increment(features.size());
+            lexemes.close();
+            features.close();
+        }
+    }
+
+    /**
+     * Ship both tables of the dictionary directory to the tasks through the distributed cache.
+     */
+    public static void addToCache(Job job, String dictionaryPath) {
+        String dir = dictionaryPath.endsWith("/") ? dictionaryPath : dictionaryPath + "/";
+        job.addCacheFile(URI.create(dir + LEXEMES + "#" + LEXEMES));
+        job.addCacheFile(URI.create(dir + FEATURES + "#" + FEATURES));
+    }
+
+    /**
+     * Open a table shipped by addToCache, from the task's working directory.
+     */
+    public static WordTable openCached(String name) throws IOException {
+        return WordTable.open(new File(name));
+    }
+
+    public static Job createJob(Configuration conf, String inputPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "DictionaryStep");
+
+        job.setJarByClass(DictionaryStep.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setNumReduceTasks(1);
+
+        job.setOutputKeyClass(CountKey.class);
+        job.setOutputValueClass(VLongWritable.class);
+        LazyOutputFormat.setOutputFormatClass(job, SequenceFileOutputFormat.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, new Path(inputPath + "part-r*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] DICTIONARY STEP started!");
+
+        String inputPath = args[2];
+        String outputPath = args[3];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 4);
+        Job job = createJob(conf, inputPath, outputPath);
+
+        boolean success = job.waitForCompletion(true);
+        System.exit(success ? 0 : 1);
+    }
+}
@@ -0,0 +1,74 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Value of the MarginalJoinStep shuffle, keyed by the lexeme: either the lexeme count l,
+ * or one of its features with the pair count lf and the feature count f already joined in.
+ */
+public class FeatureCount implements Writable {
+    private boolean marginal;
+    private final Text feature = new Text();
+    private long count;
+    private long featureCount;
+
+    public void setMarginal(long count) {
+        this.marginal = true;
+        this.feature.clear();
+        this.count = count;
+        this.featureCount = 0;
+    }
+
+    public void setPair(Text feature, long count, long featureCount) {
+        this.marginal = false;
+        this.feature.set(feature);
+        this.count = count;
+        this.featureCount = featureCount;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeBoolean(marginal);
+        if (!marginal) {
+            feature.write(out);
+            WritableUtils.writeVLong(out, featureCount);
+        }
+        WritableUtils.writeVLong(out, count);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        marginal = in.readBoolean();
+        if (!marginal) {
+            feature.readFields(in);
+            featureCount = WritableUtils.readVLong(in);
+        } else {
+            feature.clear();
+            featureCount = 0;
+        }
+        count = WritableUtils.readVLong(in);
+    }
+
+    /** True for the lexeme count, false for a pair. */
+    public boolean isMarginal() {
+        return marginal;
+    }
+
+    public Text getFeature() {
+        return feature;
+    }
+
+    /** l for the marginal, lf for a pair. */
+    public long getCount() {
+        return count;
+    }
+
+    /** f of the pair's feature. */
+    public long getFeatureCount() {
+        return featureCount;
+    }
+}
@@ -0,0 +1,81 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the gold standard file, one "word1 word2 isRelated" pair per line, with both words stemmed
+ * the same way Step1 stems the corpus.
+ */
+class GoldStandard {
+    public static final String PATH_KEY = "goldStandardPath";
+
+    /** Step1: only emit l and lf records for gold lexemes, f and the L/F totals stay global. */
+    public static final String PRUNE_KEY = "pipeline.goldPruned";
+
+    /** Name of the gold standard file in the task's working directory, see addToCache. */
+    public static final String CACHE_NAME = "gold-standard.txt";
+
+    public interface PairHandler {
+        void pair(String word1Stemmed, String word2Stemmed, String isRelated);
+    }
+
+    /**
+     * Call the handler for every well formed line, malformed lines are skipped.
+     */
+    public static void read(BufferedReader reader, PairHandler handler) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            parse(line, handler);
+        }
+    }
+
+    /**
+     * Call the handler for a single line, false if it is malformed.
+     */
+    public static boolean parse(String line, PairHandler handler) {
+        String[] parts = line.split("\\s+");
+        if (parts.length != 3) {
+            return false;
+        }
+        handler.pair(Stemmer.stemWord(parts[0]), Stemmer.stemWord(parts[1]), parts[2]);
+        return true;
+    }
+
+    public static BufferedReader open(Configuration conf, String path) throws IOException {
+        FileSystem fs = FileSystem.get(URI.create(path), conf);
+        return new BufferedReader(new InputStreamReader(fs.open(new Path(path)), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stemmed gold words as UTF-8 keys, for byte level lookups in Step1.
+     */
+    public static ByteCountMap vocabulary(BufferedReader reader) throws IOException {
+        ByteCountMap words = new ByteCountMap();
+        read(reader, (word1, word2, isRelated) -> {
+            byte[] w1 = word1.getBytes(StandardCharsets.UTF_8);
+            byte[] w2 = word2.getBytes(StandardCharsets.UTF_8);
+            words.add(w1, 0, w1.length, 1);
+            words.add(w2, 0, w2.length, 1);
+        });
+        return words;
+    }
+
+    public static void addToCache(Job job, String path) {
+        job.addCacheFile(URI.create(path + "#" + CACHE_NAME));
+    }
+
+    /**
+     * Open the file shipped by addToCache, from the task's working directory.
+     */
+    public static BufferedReader openCached() throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(CACHE_NAME), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,229 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.hash.Hash;
+import org.apache.hadoop.util.hash.MurmurHash;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable lookup from a stemmed gold standard word to the pairs it belongs to.
+ *
+ * The words are kept sorted by their UTF-8 bytes (the order of Text) and found by binary search.
+ * The entries of word i are [firstEntry(i), endEntry(i)), each one pre-built as the Step4 output key
+ * ("w1 w2"), the label and the side of the word in the pair, so nothing is split or formatted per record.
+ *
+ * A Bloom filter in front of the search rejects almost every non gold word after hashing its bytes twice.
+ */
+class GoldStandardIndex {
+    private static final Hash MURMUR = MurmurHash.getInstance();
+    private static final int NUM_HASHES = 5;
+
+    private final byte[][] words;
+    private final int[] firstEntry;
+
+    private final Text[] pairKeys;
+    private final Text[] labels;
+    private final boolean[] left;
+
+    private final long[] bloom;
+    private final int bloomMask;
+
+    private GoldStandardIndex(byte[][] words, int[] firstEntry, Text[] pairKeys, Text[] labels, boolean[] left) {
+        this.words = words;
+        this.firstEntry = firstEntry;
+        this.pairKeys = pairKeys;
+        this.labels = labels;
+        this.left = left;
+
+        // ~16 bits per word, a power of two so a bit is picked with a mask
+        int bits = 1024;
+        while (bits < words.length * 16) {
+            bits <<= 1;
+        }
+        bloom = new long[bits / 64];
+        bloomMask = bits - 1;
+        for (byte[] word : words) {
+            int h1 = MURMUR.hash(word, word.length, 0);
+            int h2 = MURMUR.hash(word, word.length, h1) | 1; // odd, so the k probes differ
+            for (int k = 0; k < NUM_HASHES; k++) {
+                int bit = (h1 + k * h2) & bloomMask;
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * Build the index from a gold standard file, see GoldStandard.read.
+     * Both words of a pair get an entry, duplicate lines are dropped.
+     */
+    public static GoldStandardIndex read(BufferedReader reader) throws IOException {
+        // word -> "partner side label" in file order, as the original map did
+        TreeMap<String, Set<String>> pairs = new TreeMap<>((a, b) -> compareUtf8(a, b));
+        GoldStandard.read(reader, (word1, word2, isRelated) -> {
+            pairs.computeIfAbsent(word1, k -> new LinkedHashSet<>()).add(word2 + " 1 " + isRelated);
+            pairs.computeIfAbsent(word2, k -> new LinkedHashSet<>()).add(word1 + " 0 " + isRelated);
+        });
+
+        byte[][] words = new byte[pairs.size()][];
+        int[] firstEntry = new int[pairs.size() + 1];
+        List<Text> pairKeys = new ArrayList<>();
+        List<Text> labels = new ArrayList<>();
+        List<Boolean> left = new ArrayList<>();
+
+        int i = 0;
+        for (Map.Entry<String, Set<String>> word : pairs.entrySet()) {
+            words[i] = word.getKey().getBytes(StandardCharsets.UTF_8);
+            firstEntry[i] = pairKeys.size();
+            for (String entry : word.getValue()) {
+                String[] parts = entry.split(" ");
+                boolean isLeft = parts[1].equals("1");
+                String w1 = isLeft ? word.getKey() : parts[0];
+                String w2 = isLeft ? parts[0] : word.getKey();
+                pairKeys.add(new Text(w1 + " " + w2));
+                labels.add(new Text(parts[2]));
+                left.add(isLeft);
+            }
+            i++;
+        }
+        firstEntry[i] = pairKeys.size();
+
+        boolean[] leftArray = new boolean[left.size()];
+        for (int e = 0; e < leftArray.length; e++) {
+            leftArray[e] = left.get(e);
+        }
+        return new GoldStandardIndex(words, firstEntry,
+                pairKeys.toArray(new Text[0]), labels.toArray(new Text[0]), leftArray);
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    /**
+     * Index of the word, or -1 if it is not in the gold standard.
+     */
+    public int find(Text word) {
+        byte[] bytes = word.getBytes();
+        int length = word.getLength();
+        if (!mightContain(bytes, length)) {
+            return -1;
+        }
+        int low = 0;
+        int high = words.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = WritableComparator.compareBytes(words[mid], 0, words[mid].length, bytes, 0, length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int find(String word) {
+        return find(new Text(word));
+    }
+
+    public String word(int i) {
+        return new String(words[i], StandardCharsets.UTF_8);
+    }
+
+    public int firstEntry(int i) {
+        return firstEntry[i];
+    }
+
+    public int endEntry(int i) {
+        return firstEntry[i + 1];
+    }
+
+    /** "w1 w2" of the pair. */
+    public Text pairKey(int entry) {
+        return pairKeys[entry];
+    }
+
+    public Text label(int entry) {
+        return labels[entry];
+    }
+
+    /** True if the word is w1 of the pair. */
+    public boolean isLeft(int entry) {
+        return left[entry];
+    }
+
+    /**
+     * Lookup from dictionary lexeme ids to gold word indexes, for pipeline.ids=true.
+     */
+    public IdLookup byLexemeId(WordTable lexemes) {
+        return new IdLookup(this, lexemes);
+    }
+
+    /**
+     * A bit per lexeme id marks the gold standard words, ids (sorted) and index map those ids to their word.
+     */
+    static class IdLookup {
+        private final long[] bits;
+        private final int[] ids;
+        private final int[] index;
+
+        private IdLookup(GoldStandardIndex gold, WordTable lexemes) {
+            bits = new long[(lexemes.size() + 63) / 64];
+            long[] found = new long[gold.size()];
+            int numFound = 0;
+            for (int i = 0; i < gold.size(); i++) {
+                int id = lexemes.find(gold.word(i));
+                if (id >= 0) {
+                    bits[id >>> 6] |= 1L << id;
+                    found[numFound++] = ((long) id << 32) | i;
+                }
+            }
+            Arrays.sort(found, 0, numFound);
+            ids = new int[numFound];
+            index = new int[numFound];
+            for (int i = 0; i < numFound; i++) {
+                ids[i] = (int) (found[i] >>> 32);
+                index[i] = (int) found[i];
+            }
+        }
+
+        /**
+         * Index of the gold word with this lexeme id, or -1.
+         */
+        public int find(int id) {
+            if ((bits[id >>> 6] & (1L << id)) == 0) {
+                return -1;
+            }
+            return index[Arrays.binarySearch(ids, id)];
+        }
+    }
+
+    private boolean mightContain(byte[] bytes, int length) {
+        int h1 = MURMUR.hash(bytes, length, 0);
+        int h2 = MURMUR.hash(bytes, length, h1) | 1; // odd, so the k probes differ
+        for (int k = 0; k < NUM_HASHES; k++) {
+            int bit = (h1 + k * h2) & bloomMask;
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compareUtf8(String a, String b) {
+        byte[] x = a.getBytes(StandardCharsets.UTF_8);
+        byte[] y = b.getBytes(StandardCharsets.UTF_8);
+        return WritableComparator.compareBytes(x, 0, x.length, y, 0, y.length);
+    }
+}
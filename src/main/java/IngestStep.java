@@ -0,0 +1,87 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import java.io.IOException;
+
+///
+/// Optional step before Step1: converts the raw biarcs files, once, into block-compressed SequenceFiles.
+///
+/// A compressed text file can't be split, so Step1 gets one map task per corpus file whatever the cluster size,
+/// and the largest file sets the length of the step. A SequenceFile has a sync marker after every compressed
+/// block, so Step1 can split the converted files anywhere (step1.input=sequence, split size step1.splitSize).
+///
+/// The lines are copied unchanged, later runs of the pipeline keep reading the same output.
+///
+public class IngestStep {
+
+    ///
+    /// input: <key, value>: key = lineID,
+    ///                      value = head_word<TAB>syntactic-ngram<TAB>total_count<TAB>counts_by_year
+    ///
+    /// output: <key, value>: the same, in a SequenceFile
+    ///
+    public static class MapperClass extends Mapper<LongWritable, Text, LongWritable, Text> {
+        private Counter lines;
+        private Counter bytes;
+
+        @Override
+        protected void setup(Context context) {
+            lines = context.getCounter("Ingest", "LINES");
+            bytes = context.getCounter("Ingest", "BYTES");
+        }
+
+        @Override
+        public void map(LongWritable lineId, Text line, Context context) throws IOException, InterruptedException {
+            lines.increment(1);
+            bytes.increment(line.getLength());
+            context.write(lineId, line);
+        }
+    }
+
+    public static Job createJob(Configuration conf, String inputPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "IngestStep");
+
+        job.setJarByClass(IngestStep.class);
+        job.setMapperClass(MapperClass.class);
+        job.setNumReduceTasks(0);
+
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+
+        job.setInputFormatClass(TextInputFormat.class);
+        FileInputFormat.addInputPath(job, new Path(inputPath));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] INGEST STEP started!");
+
+        String inputPath = args[2];
+        String outputPath = args[3];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 4);
+        Job job = createJob(conf, inputPath, outputPath);
+
+        boolean success = job.waitForCompletion(true);
+        if (success) {
+            Counters counters = job.getCounters();
+            System.out.println("[INFO] Ingested " + counters.findCounter("Ingest", "LINES").getValue() + " lines, "
+                    + counters.findCounter("Ingest", "BYTES").getValue() + " bytes");
+        }
+        System.exit(success ? 0 : 1);
+    }
+}
@@ -0,0 +1,100 @@
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the Step5 data set straight from Step4 output lines ("word1 word2 isRelated \t [24 values]"),
+ * without writing and re-reading an ARFF file.
+ *
+ * Every part file is parsed by its own task into rows of doubles, the rows are added to the data set in
+ * part file order, the same instance order as the ARFF file Step5 used to write.
+ */
+class InstanceLoader {
+
+    /** Opens one part file, the loader closes it. */
+    public interface PartSource {
+        BufferedReader open() throws IOException;
+    }
+
+    /**
+     * Read all the parts, on up to `threads` threads, into a data set with the VectorSchema attributes.
+     */
+    public static Instances load(List<PartSource> parts, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, parts.size())));
+        try {
+            List<Future<List<double[]>>> rows = new ArrayList<>();
+            for (PartSource part : parts) {
+                rows.add(pool.submit(() -> parse(part)));
+            }
+
+            Instances data = VectorSchema.header();
+            for (Future<List<double[]>> part : rows) {
+                for (double[] row : part.get()) {
+                    data.add(new DenseInstance(1, row));
+                }
+            }
+            return data;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /* One row per valid line: the 24 values, then the index of the class value */
+    private static List<double[]> parse(PartSource part) throws IOException {
+        final int n = VectorSchema.ATTRIBUTES.length;
+        List<double[]> rows = new ArrayList<>();
+        try (BufferedReader reader = part.open()) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                double[] row = new double[n + 1];
+                if (tab < 0 || !VectorSchema.parse(line.substring(tab + 1), row)) {
+                    System.err.println("[ERROR] Invalid line format: " + line);
+                    continue;
+                }
+                int labelStart = line.lastIndexOf(' ', tab) + 1;
+                boolean isRelated = Boolean.parseBoolean(line.substring(labelStart, tab));
+                row[n] = isRelated ? 0 : 1; // index of similar / not-similar in the class attribute
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Write the data set as the ARFF file Step5 used to build, full precision values.
+     */
+    public static File writeArff(Instances data, File arffFile) throws IOException {
+        final int n = VectorSchema.ATTRIBUTES.length;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(arffFile))) {
+            writer.write("@relation " + VectorSchema.RELATION + "\n\n");
+            for (String attribute : VectorSchema.ATTRIBUTES) {
+                writer.write("@attribute " + attribute + " numeric\n");
+            }
+            writer.write("@attribute class {" + VectorSchema.SIMILAR + ", " + VectorSchema.NOT_SIMILAR + "}\n\n");
+            writer.write("@data\n");
+
+            StringBuilder line = new StringBuilder();
+            for (Instance instance : data) {
+                line.setLength(0);
+                for (int i = 0; i < n; i++) {
+                    line.append(instance.value(i)).append(',');
+                }
+                line.append(instance.stringValue(n)).append('\n');
+                writer.write(line.toString());
+            }
+        }
+        return arffFile;
+    }
+}
@@ -0,0 +1,132 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Key of the Step2 join: a word, the side it stands on (lexeme or feature) and a tag.
+ *
+ * Sorted by word, side and then tag, so the marginal count (TAG_MARGINAL) of a word comes
+ * before all of its pairs (TAG_PAIR). Grouped by word and side only, see GroupingComparator.
+ */
+public class JoinKey implements WritableComparable<JoinKey> {
+    public static final byte SIDE_LEXEME = 0;
+    public static final byte SIDE_FEATURE = 1;
+
+    public static final byte TAG_MARGINAL = 0;
+    public static final byte TAG_PAIR = 1;
+
+    private final Text word = new Text();
+    private byte side;
+    private byte tag;
+
+    public JoinKey() {
+    }
+
+    public JoinKey(String word, byte side, byte tag) {
+        this.word.set(word);
+        this.side = side;
+        this.tag = tag;
+    }
+
+    public void set(Text word, byte side, byte tag) {
+        this.word.set(word);
+        this.side = side;
+        this.tag = tag;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        word.write(out);
+        out.writeByte(side);
+        out.writeByte(tag);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        word.readFields(in);
+        side = in.readByte();
+        tag = in.readByte();
+    }
+
+    @Override
+    public int compareTo(JoinKey other) {
+        int cmp = word.compareTo(other.word);
+        if (cmp != 0) {
+            return cmp;
+        }
+        if (side != other.side) {
+            return side < other.side ? -1 : 1;
+        }
+        return Byte.compare(tag, other.tag);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof JoinKey && compareTo((JoinKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return (word.hashCode() * 31 + side) * 31 + tag;
+    }
+
+    @Override
+    public String toString() {
+        return word + (side == SIDE_LEXEME ? " l" : " f") + (tag == TAG_MARGINAL ? "" : " lf");
+    }
+
+    public Text getWord() {
+        return word;
+    }
+
+    public byte getSide() {
+        return side;
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(JoinKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = TextBytes.compare(b1, s1, b2, s2);
+            if (cmp != 0) {
+                return cmp;
+            }
+            int n = TextBytes.size(b1, s1); // same word, same size
+            return compareBytes(b1, s1 + n, 2, b2, s2 + n, 2); // side, tag
+        }
+    }
+
+    ///
+    /// Groups the marginal and the pairs of a word on one side into a single reduce call
+    ///
+    public static class GroupingComparator extends WritableComparator {
+        public GroupingComparator() {
+            super(JoinKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = TextBytes.compare(b1, s1, b2, s2);
+            if (cmp != 0) {
+                return cmp;
+            }
+            int n = TextBytes.size(b1, s1);
+            return compareBytes(b1, s1 + n, 1, b2, s2 + n, 1); // side
+        }
+    }
+
+    static {
+        WritableComparator.define(JoinKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,57 @@
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Step4 with step4.salts > 1: the running sums of the SimilarityKernel of a gold pair over one range (salt)
+ * of its features, with the measures whose JS sums restarted in the range.
+ */
+public class KernelPartial implements Writable {
+    /** Serialized size */
+    public static final int BYTES = 4 + 1 + 8 * SimilarityKernel.SIZE;
+
+    private int salt;
+    private int restarts;
+    private final double[] sums = new double[SimilarityKernel.SIZE];
+
+    /** Copy the sums of the kernel. */
+    public void set(int salt, SimilarityKernel kernel) {
+        this.salt = salt;
+        this.restarts = kernel.partial(sums);
+    }
+
+    /** Merge the sums into the kernel, after those of the lower salts. */
+    public void mergeInto(SimilarityKernel kernel) {
+        kernel.merge(sums, restarts);
+    }
+
+    public void set(KernelPartial other) {
+        salt = other.salt;
+        restarts = other.restarts;
+        System.arraycopy(other.sums, 0, sums, 0, sums.length);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(salt);
+        out.writeByte(restarts);
+        for (double sum : sums) {
+            out.writeDouble(sum);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        salt = in.readInt();
+        restarts = in.readByte();
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = in.readDouble();
+        }
+    }
+
+    public int getSalt() {
+        return salt;
+    }
+}
@@ -0,0 +1,93 @@
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Key of a lexeme feature pair, sorted by lexeme then feature.
+ */
+public class LexemeFeatureKey implements WritableComparable<LexemeFeatureKey> {
+    private final Text lexeme = new Text();
+    private final Text feature = new Text();
+
+    public LexemeFeatureKey() {
+    }
+
+    public LexemeFeatureKey(String lexeme, String feature) {
+        this.lexeme.set(lexeme);
+        this.feature.set(feature);
+    }
+
+    public void set(Text lexeme, Text feature) {
+        this.lexeme.set(lexeme);
+        this.feature.set(feature);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        lexeme.write(out);
+        feature.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        lexeme.readFields(in);
+        feature.readFields(in);
+    }
+
+    @Override
+    public int compareTo(LexemeFeatureKey other) {
+        int cmp = lexeme.compareTo(other.lexeme);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return feature.compareTo(other.feature);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LexemeFeatureKey && compareTo((LexemeFeatureKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return lexeme.hashCode() * 31 + feature.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return lexeme + " " + feature;
+    }
+
+    public Text getLexeme() {
+        return lexeme;
+    }
+
+    public Text getFeature() {
+        return feature;
+    }
+
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(LexemeFeatureKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = TextBytes.compare(b1, s1, b2, s2);
+            if (cmp != 0) {
+                return cmp;
+            }
+            int n1 = TextBytes.size(b1, s1);
+            int n2 = TextBytes.size(b2, s2);
+            return TextBytes.compare(b1, s1 + n1, b2, s2 + n2);
+        }
+    }
+
+    static {
+        WritableComparator.define(LexemeFeatureKey.class, new Comparator());
+    }
+}
@@ -0,0 +1,356 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only store of the Step3 association vectors of every lexeme, indexed by its dictionary id.
+ * A store is a directory with the two dictionary tables and a vectors file:
+ *
+ *     double values[4 * total]    the AssocVector measures of every (lexeme, feature) entry
+ *     int features[total]         the feature id of every entry, ascending within a lexeme
+ *     long offsets[n + 1]         first entry of every lexeme, plus the end of the last one
+ *     long total, int n, int MAGIC
+ *
+ * The file is memory mapped like WordTable, so opening it costs nothing, the vectors stay off the heap
+ * and only the pages of the lexemes that are queried are ever read.
+ */
+public class LexemeVectorStore {
+    public static final String VECTORS = "vectors.store";
+
+    private static final int MAGIC = 0x4c565331; // "LVS1"
+    private static final int TRAILER = 8 + 4 + 4;
+    private static final int M = AssocVector.SIZE;
+
+    private final WordTable lexemes;
+    private final Mapping data;
+    private final int size;
+    private final long featuresStart;
+    private final long offsetsStart;
+
+    private LexemeVectorStore(WordTable lexemes, Mapping data) throws IOException {
+        this.lexemes = lexemes;
+        this.data = data;
+        long end = data.length();
+        if (end < TRAILER || data.getInt(end - 4) != MAGIC) {
+            throw new IOException("Not a lexeme vector store");
+        }
+        long total = data.getLong(end - TRAILER);
+        size = data.getInt(end - TRAILER + 8);
+        featuresStart = 8L * M * total;
+        offsetsStart = align(featuresStart + 4 * total);
+        if (size != lexemes.size()) {
+            throw new IOException("The vectors don't match the lexeme table: " + size + " != " + lexemes.size());
+        }
+    }
+
+    /**
+     * Memory map a store directory written by build.
+     */
+    public static LexemeVectorStore open(File dir) throws IOException {
+        WordTable lexemes = WordTable.open(new File(dir, DictionaryStep.LEXEMES));
+        return new LexemeVectorStore(lexemes, Mapping.open(new File(dir, VECTORS), FileChannel.MapMode.READ_ONLY, -1));
+    }
+
+    /**
+     * @return the id of a stemmed lexeme, or -1 if it isn't in the store.
+     */
+    public int find(String lexeme) {
+        return lexemes.find(lexeme);
+    }
+
+    public String word(int lexeme) {
+        return lexemes.word(lexeme);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of features of a lexeme, 0 for -1.
+     */
+    public int features(int lexeme) {
+        return lexeme < 0 ? 0 : (int) (offset(lexeme + 1) - offset(lexeme));
+    }
+
+    /**
+     * Add the features of both lexemes to the kernel, merged by feature id like SparseVector.similarity.
+     * A lexeme of -1 has no features. Safe to call from several threads with their own kernels.
+     */
+    public void similarity(int lexeme1, int lexeme2, SimilarityKernel kernel) {
+        long i = lexeme1 < 0 ? 0 : offset(lexeme1);
+        long end1 = lexeme1 < 0 ? 0 : offset(lexeme1 + 1);
+        long j = lexeme2 < 0 ? 0 : offset(lexeme2);
+        long end2 = lexeme2 < 0 ? 0 : offset(lexeme2 + 1);
+
+        double[] v1 = new double[M];
+        double[] v2 = new double[M];
+        while (i < end1 && j < end2) {
+            int f1 = feature(i);
+            int f2 = feature(j);
+            if (f1 == f2) {
+                kernel.add(values(i++, v1), values(j++, v2));
+            } else if (f1 < f2) {
+                kernel.addOneSided(values(i++, v1), true);
+            } else {
+                kernel.addOneSided(values(j++, v2), false);
+            }
+        }
+        for (; i < end1; i++) {
+            kernel.addOneSided(values(i, v1), true);
+        }
+        for (; j < end2; j++) {
+            kernel.addOneSided(values(j, v2), false);
+        }
+    }
+
+    private long offset(int lexeme) {
+        return data.getLong(offsetsStart + 8L * lexeme);
+    }
+
+    private int feature(long entry) {
+        return data.getInt(featuresStart + 4 * entry);
+    }
+
+    private double[] values(long entry, double[] out) {
+        long position = 8L * M * entry;
+        for (int m = 0; m < M; m++) {
+            out[m] = data.getDouble(position + 8 * m);
+        }
+        return out;
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private interface EntryHandler {
+        void entry(int lexeme, int feature, AssocVector assoc) throws IOException;
+    }
+
+    /**
+     * Write a store into dir from Step3's output (string keys, or ids with pipeline.ids=true) and the
+     * DictionaryStep tables in dictionaryPath. Both paths may be on any Hadoop file system.
+     *
+     * The Step3 part files are read twice, once to count the features of every lexeme and once to
+     * copy them to their place in the file. The entries of a lexeme come from several part files,
+     * so every lexeme is sorted by feature id at the end.
+     */
+    public static void build(Configuration conf, String step3Path, String dictionaryPath, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        String dictionary = dictionaryPath.endsWith("/") ? dictionaryPath : dictionaryPath + "/";
+        FileSystem dictionaryFs = FileSystem.get(URI.create(dictionary), conf);
+        for (String table : new String[]{DictionaryStep.LEXEMES, DictionaryStep.FEATURES}) {
+            dictionaryFs.copyToLocalFile(false, new Path(dictionary + table), new Path(new File(dir, table).toURI()), true);
+        }
+        WordTable lexemes = WordTable.open(new File(dir, DictionaryStep.LEXEMES));
+        WordTable features = WordTable.open(new File(dir, DictionaryStep.FEATURES));
+
+        String input = step3Path.endsWith("/") ? step3Path : step3Path + "/";
+        FileSystem fs = FileSystem.get(URI.create(input), conf);
+        FileStatus[] parts = fs.globStatus(new Path(input + "part-r*"));
+        if (parts == null || parts.length == 0) {
+            throw new IOException("No Step3 output in " + input);
+        }
+        Arrays.sort(parts);
+
+        int n = lexemes.size();
+        long[] offsets = new long[n + 1];
+        long[] missing = new long[1];
+        scan(conf, fs, parts, lexemes, features, missing, (lexeme, feature, assoc) -> offsets[lexeme + 1]++);
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        long total = offsets[n];
+        if (missing[0] > 0) {
+            System.out.println("[WARN] " + missing[0] + " Step3 entries are not in the dictionary, left out");
+        }
+
+        long featuresStart = 8L * M * total;
+        long offsetsStart = align(featuresStart + 4 * total);
+        long length = offsetsStart + 8L * (n + 1) + TRAILER;
+        File file = new File(dir, VECTORS);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(length);
+        }
+        Mapping data = Mapping.open(file, FileChannel.MapMode.READ_WRITE, length);
+
+        long[] next = Arrays.copyOf(offsets, n);
+        scan(conf, fs, parts, lexemes, features, missing, (lexeme, feature, assoc) -> {
+            long entry = next[lexeme]++;
+            data.putInt(featuresStart + 4 * entry, feature);
+            double[] values = assoc.values();
+            for (int m = 0; m < M; m++) {
+                data.putDouble(8L * M * entry + 8 * m, values[m]);
+            }
+        });
+
+        for (int lexeme = 0; lexeme < n; lexeme++) {
+            sort(data, featuresStart, offsets[lexeme], offsets[lexeme + 1]);
+        }
+        for (int i = 0; i <= n; i++) {
+            data.putLong(offsetsStart + 8L * i, offsets[i]);
+        }
+        long trailer = length - TRAILER;
+        data.putLong(trailer, total);
+        data.putInt(trailer + 8, n);
+        data.putInt(trailer + 12, MAGIC);
+        data.force();
+
+        System.out.println("[INFO] Wrote " + total + " features of " + n + " lexemes to " + file);
+    }
+
+    private static void scan(Configuration conf, FileSystem fs, FileStatus[] parts, WordTable lexemes,
+                             WordTable features, long[] missing, EntryHandler handler) throws IOException {
+        for (FileStatus part : parts) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                    SequenceFile.Reader.file(fs.makeQualified(part.getPath())))) {
+                Writable key = (Writable) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+                AssocVector assoc = new AssocVector();
+                while (reader.next(key, assoc)) {
+                    int lexeme;
+                    int feature;
+                    if (key instanceof LongWritable) {
+                        long pair = ((LongWritable) key).get();
+                        lexeme = PairCount.lexemeId(pair);
+                        feature = PairCount.featureId(pair);
+                    } else {
+                        LexemeFeatureKey lexemeFeature = (LexemeFeatureKey) key;
+                        Text word = lexemeFeature.getLexeme();
+                        lexeme = lexemes.find(word.getBytes(), 0, word.getLength());
+                        word = lexemeFeature.getFeature();
+                        feature = features.find(word.getBytes(), 0, word.getLength());
+                    }
+                    if (lexeme < 0 || feature < 0) {
+                        missing[0]++;
+                        continue;
+                    }
+                    handler.entry(lexeme, feature, assoc);
+                }
+            }
+        }
+    }
+
+    /* Sort the entries [start, end) by feature id, moving their measures with them */
+    private static void sort(Mapping data, long featuresStart, long start, long end) {
+        int count = (int) (end - start);
+        boolean sorted = true;
+        for (int i = 1; i < count && sorted; i++) {
+            sorted = data.getInt(featuresStart + 4 * (start + i - 1)) < data.getInt(featuresStart + 4 * (start + i));
+        }
+        if (sorted) {
+            return;
+        }
+
+        long[] order = new long[count];
+        double[] values = new double[count * M];
+        for (int i = 0; i < count; i++) {
+            order[i] = ((long) data.getInt(featuresStart + 4 * (start + i)) << 32) | i;
+            for (int m = 0; m < M; m++) {
+                values[i * M + m] = data.getDouble(8L * M * (start + i) + 8 * m);
+            }
+        }
+        Arrays.sort(order); // feature ids are never negative
+        for (int i = 0; i < count; i++) {
+            int from = (int) order[i];
+            data.putInt(featuresStart + 4 * (start + i), (int) (order[i] >>> 32));
+            for (int m = 0; m < M; m++) {
+                data.putDouble(8L * M * (start + i) + 8 * m, values[from * M + m]);
+            }
+        }
+    }
+
+    /**
+     * A file mapped in 1 GB chunks, one MappedByteBuffer can't address more than 2 GB.
+     * Every value is aligned to its size, so none of them crosses a chunk boundary.
+     */
+    private static final class Mapping {
+        private static final int SHIFT = 30;
+        private static final long MASK = (1L << SHIFT) - 1;
+
+        private final MappedByteBuffer[] chunks;
+        private final long length;
+
+        private Mapping(MappedByteBuffer[] chunks, long length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        /** Map length bytes of the file, or all of it for -1. */
+        static Mapping open(File file, FileChannel.MapMode mode, long length) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+                 FileChannel channel = raf.getChannel()) {
+                long size = length < 0 ? channel.size() : length;
+                MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + MASK) >>> SHIFT)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = (long) i << SHIFT;
+                    chunks[i] = channel.map(mode, start, Math.min(MASK + 1, size - start));
+                    chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+                }
+                return new Mapping(chunks, size);
+            }
+        }
+
+        long length() {
+            return length;
+        }
+
+        int getInt(long position) {
+            return chunks[(int) (position >>> SHIFT)].getInt((int) (position & MASK));
+        }
+
+        long getLong(long position) {
+            return chunks[(int) (position >>> SHIFT)].getLong((int) (position & MASK));
+        }
+
+        double getDouble(long position) {
+            return chunks[(int) (position >>> SHIFT)].getDouble((int) (position & MASK));
+        }
+
+        void putInt(long position, int value) {
+            chunks[(int) (position >>> SHIFT)].putInt((int) (position & MASK), value);
+        }
+
+        void putLong(long position, long value) {
+            chunks[(int) (position >>> SHIFT)].putLong((int) (position & MASK), value);
+        }
+
+        void putDouble(long position, double value) {
+            chunks[(int) (position >>> SHIFT)].putDouble((int) (position & MASK), value);
+        }
+
+        void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: LexemeVectorStore <step3Output> <dictionary> <storeDir> [key=value ...]");
+            System.exit(1);
+        }
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 3);
+        build(conf, args[0], args[1], new File(args[2]));
+    }
+}
@@ -0,0 +1,190 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+///
+/// Runs Steps 1 to 5 in this JVM with the Hadoop LocalJobRunner, over local directories, no EMR or S3 needed.
+///
+/// usage: LocalPipeline <inputPath> <workDir> <goldStandardPath> [key=value ...]
+///
+/// Every step writes into <workDir>/<step name>/, the L/F totals go to <workDir>/counters.
+/// The key=value options are the same as on EMR (pipeline.ids, pipeline.goldPruned, step1.combine.inMapper, ...),
+/// plus pipeline.marginalJoin=true to run MarginalJoinStep instead of Steps 2 and 3
+/// and pipeline.sparseVectors=true to run VectorStep instead of Step4.
+/// pipeline.topK=true also runs TopKStep on Step3's output, into <workDir>/topk/,
+/// and pipeline.signatures=true runs SignatureStep, into <workDir>/signatures/.
+/// pipeline.vectorStore=true writes a LexemeVectorStore of Step3's output into <workDir>/vector_store/,
+/// for SimilarityService.
+/// pipeline.ingest=true first converts the input with IngestStep, into <workDir>/ingest/, and Step1 reads that
+/// (step1.input=sequence, split size step1.splitSize).
+/// step4.salts=<n> runs Step4 as two jobs, partial sums of n feature ranges per pair into <workDir>/step4_partials/
+/// and their merge into <workDir>/step4/.
+/// step5.mode=train saves a model built on all of Step4's output instead of cross-validating,
+/// step5.mode=score step5.model=<file> classifies Step4's output with a saved one.
+///
+/// At the end a table with the wall time, map tasks and record counts of every step is printed.
+///
+public class LocalPipeline {
+    public static final String MARGINAL_JOIN_KEY = "pipeline.marginalJoin";
+    public static final String SPARSE_VECTORS_KEY = "pipeline.sparseVectors";
+    public static final String TOP_K_KEY = "pipeline.topK";
+    public static final String SIGNATURES_KEY = "pipeline.signatures";
+    public static final String VECTOR_STORE_KEY = "pipeline.vectorStore";
+    public static final String INGEST_KEY = "pipeline.ingest";
+
+    private static final String[] STEP_DIRS = {"step1", "dictionary", "step2", "step3", "vectors", "step4", "step4_partials", "step5", "counters",
+            "topk_vectors", "topk_pairs", "topk", "signature_vectors", "signature_candidates", "signatures",
+            "vector_store", "ingest"};
+
+    private final List<String> report = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: LocalPipeline <inputPath> <workDir> <goldStandardPath> [key=value ...]");
+            System.exit(1);
+        }
+        new LocalPipeline().run(args);
+    }
+
+    private void run(String[] args) throws Exception {
+        String inputPath = args[0];
+        File workDir = new File(args[1]).getAbsoluteFile();
+        String work = workDir.toURI().toString();
+        if (!work.endsWith("/")) { // Steps 2-4 append part-r* to their input path
+            work += "/";
+        }
+
+        Configuration conf = new Configuration();
+        conf.set("mapreduce.framework.name", "local");
+        conf.set("fs.defaultFS", "file:///");
+        conf.setBoolean(Step1.COMBINE_KEY, true);
+        conf.set(GoldStandard.PATH_KEY, new File(args[2]).getAbsoluteFile().toURI().toString());
+        conf.set(PipelineOptions.COUNTERS_KEY, work + "counters");
+        conf.set(DictionaryStep.DICTIONARY_KEY, work + "dictionary/");
+        PipelineOptions.apply(conf, args, 3);
+
+        boolean ids = conf.getBoolean(DictionaryStep.IDS_KEY, false);
+        boolean marginalJoin = conf.getBoolean(MARGINAL_JOIN_KEY, false);
+        boolean sparseVectors = conf.getBoolean(SPARSE_VECTORS_KEY, false);
+        boolean topK = conf.getBoolean(TOP_K_KEY, false);
+        boolean signatures = conf.getBoolean(SIGNATURES_KEY, false);
+        boolean vectorStore = conf.getBoolean(VECTOR_STORE_KEY, false);
+        if (marginalJoin && ids) {
+            System.out.println("[WARN] " + MARGINAL_JOIN_KEY + " writes string keys, running Step4 without ids");
+            conf.setBoolean(DictionaryStep.IDS_KEY, false);
+        }
+
+        // Only the directories of this pipeline are cleared, the rest of workDir is left alone
+        FileSystem fs = FileSystem.getLocal(conf);
+        for (String dir : STEP_DIRS) {
+            fs.delete(new Path(work + dir), true);
+        }
+
+        long start = System.nanoTime();
+
+        if (conf.getBoolean(INGEST_KEY, false)) {
+            runJob(IngestStep.createJob(new Configuration(conf), inputPath, work + "ingest"));
+            conf.set(Step1.INPUT_KEY, "sequence");
+            inputPath = work + "ingest";
+        }
+
+        Job step1 = Step1.createJob(new Configuration(conf), inputPath, work + "step1");
+        runJob(step1);
+        Step1.writeTotals(step1, conf.get(PipelineOptions.COUNTERS_KEY));
+
+        if (ids || marginalJoin || sparseVectors || topK || signatures || vectorStore) {
+            runJob(DictionaryStep.createJob(new Configuration(conf), work + "step1/", work + "dictionary"));
+        }
+
+        if (marginalJoin) {
+            Configuration joinConf = new Configuration(conf);
+            Step3.loadTotals(joinConf, conf.get(PipelineOptions.COUNTERS_KEY));
+            runJob(MarginalJoinStep.createJob(joinConf, work + "step1/", work + "step3", work + "dictionary/"));
+        } else {
+            runJob(Step2.createJob(new Configuration(conf), work + "step1/", work + "step2"));
+
+            Configuration step3Conf = new Configuration(conf);
+            Step3.loadTotals(step3Conf, conf.get(PipelineOptions.COUNTERS_KEY));
+            runJob(Step3.createJob(step3Conf, work + "step2/", work + "step3"));
+        }
+
+        if (vectorStore) {
+            long storeStart = System.nanoTime();
+            LexemeVectorStore.build(conf, work + "step3/", work + "dictionary/", new File(workDir, "vector_store"));
+            addRow("LexemeVectorStore", System.nanoTime() - storeStart, -1, -1, -1, -1, -1);
+        }
+
+        if (topK) {
+            runJob(TopKStep.createVectorJob(new Configuration(conf), work + "step3/", work + "topk_vectors"));
+            runJob(TopKStep.createPairJob(new Configuration(conf), work + "topk_vectors/", work + "topk_pairs"));
+            runJob(TopKStep.createTopKJob(new Configuration(conf), work + "topk_pairs/", work + "topk_vectors",
+                    work + "topk"));
+        }
+
+        if (signatures) {
+            runJob(SignatureStep.createVectorJob(new Configuration(conf), work + "step3/", work + "signature_vectors"));
+            runJob(SignatureStep.createCandidateJob(new Configuration(conf), work + "signature_vectors/",
+                    work + "signature_candidates"));
+            runJob(SignatureStep.createScoreJob(new Configuration(conf), work + "signature_candidates/",
+                    work + "signature_vectors", work + "signatures"));
+        }
+
+        if (sparseVectors) {
+            runJob(VectorStep.createJob(new Configuration(conf), work + "step3/", work + "vectors"));
+            runJob(VectorStep.createPairJob(new Configuration(conf), work + "vectors", work + "step4"));
+        } else if (conf.getInt(Step4.SALTS_KEY, 1) > 1) {
+            runJob(Step4.createPartialJob(new Configuration(conf), work + "step3/", work + "step4_partials"));
+            runJob(Step4.createMergeJob(new Configuration(conf), work + "step4_partials/", work + "step4"));
+        } else {
+            runJob(Step4.createJob(new Configuration(conf), work + "step3/", work + "step4"));
+        }
+
+        long step5Start = System.nanoTime();
+        File result = Step5.runLocal(new File(workDir, "step4"), new File(workDir, "step5"), conf);
+        addRow("Step5", System.nanoTime() - step5Start, -1, -1, -1, -1, -1);
+
+        System.out.println();
+        System.out.println(String.format("%-18s %10s %6s %14s %14s %16s %14s",
+                "step", "seconds", "maps", "map in", "map out", "map out bytes", "reduce out"));
+        for (String row : report) {
+            System.out.println(row);
+        }
+        System.out.println(String.format("%-18s %10.2f", "total", (System.nanoTime() - start) / 1e9));
+        System.out.println("[INFO] Classifier results: " + result.getAbsolutePath());
+    }
+
+    private void runJob(Job job) throws Exception {
+        System.out.println("[INFO] Running " + job.getJobName());
+        long start = System.nanoTime();
+        if (!job.waitForCompletion(false)) {
+            throw new IOException(job.getJobName() + " failed");
+        }
+        long elapsed = System.nanoTime() - start;
+        ReducerPlanner.writeStats(job);
+
+        Counters counters = job.getCounters();
+        addRow(job.getJobName(), elapsed,
+                CombinedInput.splits(job),
+                counters.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue(),
+                counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue(),
+                counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue(),
+                counters.findCounter(TaskCounter.REDUCE_OUTPUT_RECORDS).getValue());
+    }
+
+    private void addRow(String name, long nanos, long maps, long mapIn, long mapOut, long mapOutBytes, long reduceOut) {
+        report.add(String.format("%-18s %10.2f %6s %14s %14s %16s %14s", name, nanos / 1e9, count(maps),
+                count(mapIn), count(mapOut), count(mapOutBytes), count(reduceOut)));
+    }
+
+    private static String count(long value) {
+        return value < 0 ? "-" : String.format("%,d", value);
+    }
+}
@@ -0,0 +1,56 @@
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Step2's output value: the lf count of a pair together with one marginal, l or f.
+ */
+public class MarginalCount implements Writable {
+    public static final byte TYPE_NONE = -1;
+
+    private long lf;
+    private byte type = TYPE_NONE;
+    private long count;
+
+    public void set(long lf, byte type, long count) {
+        this.lf = lf;
+        this.type = type;
+        this.count = count;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, lf);
+        out.writeByte(type);
+        WritableUtils.writeVLong(out, count);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        lf = WritableUtils.readVLong(in);
+        type = in.readByte();
+        count = WritableUtils.readVLong(in);
+    }
+
+    @Override
+    public String toString() {
+        String name = type == CountKey.TYPE_L ? "l" : type == CountKey.TYPE_F ? "f" : "null";
+        return "lf=" + lf + " " + name + "=" + count;
+    }
+
+    public long getLf() {
+        return lf;
+    }
+
+    /** CountKey.TYPE_L, CountKey.TYPE_F or TYPE_NONE. */
+    public byte getType() {
+        return type;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
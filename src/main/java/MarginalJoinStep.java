@@ -0,0 +1,157 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import java.io.IOException;
+
+///
+/// Alternative to Step2 + Step3 in a single job, run after DictionaryStep.
+///
+/// The feature counts f are read map-side from the memory mapped features.table of the dictionary,
+/// so every lf record is shuffled once, keyed by its lexeme, and meets the lexeme count l in the reducer.
+/// The output is the same as Step3's and goes straight to Step4.
+///
+public class MarginalJoinStep {
+
+    ///
+    /// input: <key, value>: key = CountKey(l, lexeme) or CountKey(f, feature) or CountKey(lf, lexeme, feature),
+    ///                      value = count
+    ///
+    /// output: <key, value>: key = JoinKey(lexeme, lexeme, marginal), value = FeatureCount(l)
+    ///                       or key = JoinKey(lexeme, lexeme, pair), value = FeatureCount(feature, lf, f)
+    ///
+    public static class MapperClass extends Mapper<CountKey, VLongWritable, JoinKey, FeatureCount> {
+        private WordTable features;
+
+        private final JoinKey outKey = new JoinKey();
+        private final FeatureCount outValue = new FeatureCount();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            features = DictionaryStep.openCached(DictionaryStep.FEATURES);
+        }
+
+        @Override
+        public void map(CountKey key, VLongWritable count, Context context) throws IOException, InterruptedException {
+            if (key.getType() == CountKey.TYPE_LF) {
+                Text feature = key.getSecond();
+                int id = features.find(feature.getBytes(), 0, feature.getLength());
+                if (id < 0) {
+                    context.getCounter("Join", "MISSING_MARGINAL").increment(1);
+                    return;
+                }
+                outKey.set(key.getFirst(), JoinKey.SIDE_LEXEME, JoinKey.TAG_PAIR);
+                outValue.setPair(feature, count.get(), features.value(id));
+                context.write(outKey, outValue);
+            } else if (key.getType() == CountKey.TYPE_L) {
+                outKey.set(key.getFirst(), JoinKey.SIDE_LEXEME, JoinKey.TAG_MARGINAL);
+                outValue.setMarginal(count.get());
+                context.write(outKey, outValue);
+            }
+            // f records are already in the features table
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = JoinKey(lexeme), values = FeatureCount(l) first, then FeatureCount(feature, lf, f)
+    ///
+    /// output: <key, value>: key = LexemeFeatureKey(lexeme, feature),
+    ///                       value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
+    ///
+    public static class ReducerClass extends Reducer<JoinKey, FeatureCount, LexemeFeatureKey, AssocVector> {
+        public double L;
+        public double F;
+
+        private final LexemeFeatureKey outKey = new LexemeFeatureKey();
+        private final AssocVector outValue = new AssocVector();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            L = Double.parseDouble(context.getConfiguration().get("L"));
+            F = Double.parseDouble(context.getConfiguration().get("F"));
+        }
+
+        @Override
+        public void reduce(JoinKey key, Iterable<FeatureCount> values, Context context) throws IOException, InterruptedException {
+            double l = 0;
+
+            for (FeatureCount value : values) {
+                if (value.isMarginal()) {
+                    l = value.getCount();
+                    continue;
+                }
+                if (Step3.measures(value.getCount(), l, value.getFeatureCount(), L, F, outValue)) {
+                    outKey.set(key.getWord(), value.getFeature());
+                    context.write(outKey, outValue);
+                } else {
+                    System.err.println(String.format("Error! l=%s f=%s lf=%s", l, value.getFeatureCount(), value.getCount()));
+                }
+            }
+        }
+    }
+
+    ///
+    /// Partition by the lexeme
+    ///
+    public static class PartitionerClass extends Partitioner<JoinKey, FeatureCount> {
+
+        @Override
+        public int getPartition(JoinKey key, FeatureCount value, int numPartitions) {
+            return (key.getWord().hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    public static Job createJob(Configuration conf, String inputPath, String outputPath, String dictionaryPath) throws IOException {
+        Job job = Job.getInstance(conf, "MarginalJoinStep");
+
+        job.setJarByClass(MarginalJoinStep.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setPartitionerClass(PartitionerClass.class);
+        job.setGroupingComparatorClass(JoinKey.GroupingComparator.class);
+
+        job.setMapOutputKeyClass(JoinKey.class);
+        job.setMapOutputValueClass(FeatureCount.class);
+
+        job.setOutputKeyClass(LexemeFeatureKey.class);
+        job.setOutputValueClass(AssocVector.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+
+        DictionaryStep.addToCache(job, dictionaryPath);
+
+        ReducerPlanner.apply(job, inputPath, 1);
+        CombinedInput.addInputPath(job, new Path(inputPath + "part-r*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] MARGINAL JOIN STEP started!");
+
+        String jarBucketName = args[1];
+        String inputPath = args[2];
+        String outputPath = args[3];
+        String dictionaryPath = args[4];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 5);
+        Step3.loadTotals(conf, PipelineOptions.countersPath(conf, jarBucketName));
+
+        Job job = createJob(conf, inputPath, outputPath, dictionaryPath);
+
+        boolean success = job.waitForCompletion(true);
+        if (success) {
+            CombinedInput.report(job);
+            ReducerPlanner.writeStats(job);
+        }
+        System.exit(success ? 0 : 1);
+    }
+}
@@ -0,0 +1,70 @@
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Dictionary encoded Step2 value: a count and, for lf counts, the packed (lexeme id, feature id) pair.
+ * A marginal count has a negative pair: NO_PAIR, or -1 - replica for the copies of a marginal replicated
+ * to several reducers (see SkewPlan).
+ */
+public class PairCount implements Writable {
+    public static final long NO_PAIR = -1;
+
+    private long pair = NO_PAIR;
+    private long count;
+
+    public void set(long pair, long count) {
+        this.pair = pair;
+        this.count = count;
+    }
+
+    public void setMarginal(long count, int replica) {
+        this.pair = NO_PAIR - replica;
+        this.count = count;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVLong(out, pair);
+        WritableUtils.writeVLong(out, count);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        pair = WritableUtils.readVLong(in);
+        count = WritableUtils.readVLong(in);
+    }
+
+    /** (lexeme id << 32) | feature id, or negative for a marginal count. */
+    public long getPair() {
+        return pair;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isMarginal() {
+        return pair < 0;
+    }
+
+    /** Which copy of a replicated marginal this is. */
+    public int getReplica() {
+        return (int) (NO_PAIR - pair);
+    }
+
+    public static long pack(int lexemeId, int featureId) {
+        return ((long) lexemeId << 32) | (featureId & 0xffffffffL);
+    }
+
+    public static int lexemeId(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    public static int featureId(long pair) {
+        return (int) pair;
+    }
+}
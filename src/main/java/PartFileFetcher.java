@@ -0,0 +1,387 @@
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the part files of a step's output for Step5 and WekaModel.
+ *
+ * Every part file is fetched as ranges of at most rangeSize bytes, one GET per range, on a pool of `parallelism`
+ * threads. The reader gets the bytes in order while the next ranges download: forEach keeps up to parallelism
+ * ranges ahead of its consumer, a stream from open() keeps two, so memory is bounded by the ranges ahead.
+ *
+ * The files come from a Store: S3 through any AmazonS3 client (also a local S3 stand-in, see s3Endpoint), or a local
+ * directory, so the fetcher can be benchmarked offline with main.
+ */
+class PartFileFetcher implements AutoCloseable {
+    public static final int DEFAULT_PARALLELISM = 8;
+    public static final long DEFAULT_RANGE_SIZE = 8L << 20;
+
+    /** Where the part files are, keys are full S3 keys or paths relative to the directory. */
+    public interface Store {
+        /** All the objects under the prefix. */
+        List<Part> list(String prefix) throws IOException;
+
+        /** The bytes [start, start + length) of the object. */
+        byte[] read(String key, long start, int length) throws IOException;
+    }
+
+    public static class Part {
+        public final String key;
+        public final long size;
+
+        public Part(String key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    /** Reads the parts handed out by forEach, in order. */
+    public interface PartConsumer {
+        void accept(Part part, InputStream in) throws Exception;
+    }
+
+    private final Store store;
+    private final int parallelism;
+    private final long rangeSize;
+    private final ExecutorService pool;
+
+    public PartFileFetcher(Store store, int parallelism, long rangeSize) {
+        this.store = store;
+        this.parallelism = Math.max(1, parallelism);
+        this.rangeSize = Math.max(1, Math.min(rangeSize, Integer.MAX_VALUE));
+        this.pool = Executors.newFixedThreadPool(this.parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "part-fetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The objects under folder whose name starts with namePrefix (e.g. "part-r"), sorted by key.
+     */
+    public List<Part> list(String folder, String namePrefix) throws IOException {
+        List<Part> parts = new ArrayList<>();
+        for (Part part : store.list(folder)) {
+            if (part.key.startsWith(folder + namePrefix)) {
+                parts.add(part);
+            }
+        }
+        parts.sort(Comparator.comparing(part -> part.key));
+        return parts;
+    }
+
+    /**
+     * One part as a stream, its ranges are downloaded ahead of the reader.
+     */
+    public InputStream open(Part part) {
+        return new PartStream(new RangeQueue(ranges(Arrays.asList(part)), 2), part.size, true);
+    }
+
+    /**
+     * Hand the parts to the consumer one after the other, in list order, on this thread. The ranges of the following
+     * parts keep downloading while the consumer reads the current one.
+     */
+    public void forEach(List<Part> parts, PartConsumer consumer) throws Exception {
+        RangeQueue queue = new RangeQueue(ranges(parts), parallelism);
+        try {
+            for (Part part : parts) {
+                try (InputStream in = new PartStream(queue, part.size, false)) {
+                    consumer.accept(part, in);
+                }
+            }
+        } finally {
+            queue.cancel();
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private List<Range> ranges(List<Part> parts) {
+        List<Range> ranges = new ArrayList<>();
+        for (Part part : parts) {
+            for (long start = 0; start < part.size; start += rangeSize) {
+                ranges.add(new Range(part.key, start, (int) Math.min(rangeSize, part.size - start)));
+            }
+        }
+        return ranges;
+    }
+
+    private static final class Range {
+        final String key;
+        final long start;
+        final int length;
+
+        Range(String key, long start, int length) {
+            this.key = key;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    /* The ranges in order, with up to `window` of them downloading */
+    private final class RangeQueue {
+        private final Iterator<Range> pending;
+        private final int window;
+        private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+        RangeQueue(List<Range> ranges, int window) {
+            this.pending = ranges.iterator();
+            this.window = window;
+            fill();
+        }
+
+        byte[] next() throws IOException {
+            Future<byte[]> next = inFlight.poll();
+            if (next == null) {
+                throw new EOFException("No more ranges");
+            }
+            fill();
+            try {
+                return next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to fetch a range: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        void cancel() {
+            for (Future<byte[]> future : inFlight) {
+                future.cancel(true);
+            }
+            inFlight.clear();
+        }
+
+        private void fill() {
+            while (inFlight.size() < window && pending.hasNext()) {
+                Range range = pending.next();
+                inFlight.add(pool.submit(() -> store.read(range.key, range.start, range.length)));
+            }
+        }
+    }
+
+    /*
+     * The next `size` bytes of the queue. close() cancels the queue if the stream owns it,
+     * and otherwise skips what wasn't read, so the queue is at the start of the next part.
+     */
+    private static final class PartStream extends InputStream {
+        private final RangeQueue queue;
+        private final boolean ownsQueue;
+        private long remaining;
+        private byte[] buffer = new byte[0];
+        private int position;
+
+        PartStream(RangeQueue queue, long size, boolean ownsQueue) {
+            this.queue = queue;
+            this.remaining = size;
+            this.ownsQueue = ownsQueue;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.length - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.length - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (ownsQueue) {
+                queue.cancel();
+                remaining = 0;
+            }
+            while (remaining > 0) {
+                remaining -= queue.next().length;
+            }
+            position = buffer.length;
+        }
+
+        private boolean fill() throws IOException {
+            while (position == buffer.length) {
+                if (remaining == 0) {
+                    return false;
+                }
+                buffer = queue.next();
+                position = 0;
+                remaining -= buffer.length;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * S3 objects of a bucket, listed page by page until the listing is no longer truncated.
+     */
+    public static Store s3(AmazonS3 client, String bucketName) {
+        return new Store() {
+            @Override
+            public List<Part> list(String prefix) {
+                List<Part> parts = new ArrayList<>();
+                ObjectListing listing = client.listObjects(bucketName, prefix);
+                while (true) {
+                    for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                        parts.add(new Part(summary.getKey(), summary.getSize()));
+                    }
+                    if (!listing.isTruncated()) {
+                        return parts;
+                    }
+                    listing = client.listNextBatchOfObjects(listing);
+                }
+            }
+
+            @Override
+            public byte[] read(String key, long start, int length) throws IOException {
+                GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(start, start + length - 1);
+                try (S3Object object = client.getObject(request);
+                     InputStream in = object.getObjectContent()) {
+                    return readFully(in, length, key);
+                }
+            }
+        };
+    }
+
+    /**
+     * An S3 client for a local S3 stand-in at endpoint (e.g. http://localhost:9000), with path style buckets.
+     */
+    public static AmazonS3 s3Endpoint(String endpoint, String region) {
+        return AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region))
+                .withPathStyleAccessEnabled(true)
+                .build();
+    }
+
+    /**
+     * Files under a local directory, keys are their paths relative to it with '/' separators.
+     */
+    public static Store local(File dir) {
+        return new Store() {
+            @Override
+            public List<Part> list(String prefix) throws IOException {
+                List<Part> parts = new ArrayList<>();
+                File folder = new File(dir, prefix.endsWith("/") ? prefix : prefix + "/");
+                File[] files = folder.listFiles(File::isFile);
+                if (files == null) {
+                    throw new IOException("Not a directory: " + folder);
+                }
+                String folderKey = prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+                for (File file : files) {
+                    parts.add(new Part(folderKey + file.getName(), file.length()));
+                }
+                return parts;
+            }
+
+            @Override
+            public byte[] read(String key, long start, int length) throws IOException {
+                try (RandomAccessFile file = new RandomAccessFile(new File(dir, key), "r")) {
+                    byte[] bytes = new byte[length];
+                    file.seek(start);
+                    file.readFully(bytes);
+                    return bytes;
+                }
+            }
+        };
+    }
+
+    private static byte[] readFully(InputStream in, int length, String key) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Short read of " + key + ": " + read + " of " + length + " bytes");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    ///
+    /// Fetch every part file of a folder and report the throughput, to compare settings offline.
+    ///
+    /// usage: PartFileFetcher <localDir | s3://bucket/folder/> [parallelism] [rangeSizeMB] [endpoint]
+    ///
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PartFileFetcher <localDir | s3://bucket/folder/> [parallelism] [rangeSizeMB] [endpoint]");
+            System.exit(1);
+        }
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PARALLELISM;
+        long rangeSize = args.length > 2 ? Long.parseLong(args[2]) << 20 : DEFAULT_RANGE_SIZE;
+
+        Store store;
+        String folder;
+        if (args[0].startsWith("s3://")) {
+            String path = args[0].substring("s3://".length());
+            int slash = path.indexOf('/');
+            String bucket = slash < 0 ? path : path.substring(0, slash);
+            folder = slash < 0 ? "" : path.substring(slash + 1);
+            AmazonS3 client = args.length > 3 ? s3Endpoint(args[3], "us-east-1")
+                    : AmazonS3ClientBuilder.standard().withRegion("us-east-1").build();
+            store = s3(client, bucket);
+        } else {
+            store = local(new File(args[0]));
+            folder = "";
+        }
+
+        try (PartFileFetcher fetcher = new PartFileFetcher(store, parallelism, rangeSize)) {
+            long start = System.nanoTime();
+            List<Part> parts = fetcher.list(folder, "part-");
+            long[] bytes = new long[1];
+            byte[] buffer = new byte[64 * 1024];
+            fetcher.forEach(parts, (part, in) -> {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    bytes[0] += n;
+                }
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("[INFO] %d part files, %,d bytes in %.2f seconds, %.1f MB/s",
+                    parts.size(), bytes[0], seconds, bytes[0] / 1e6 / seconds));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.Arrays;
+
+/**
+ * Optional job settings passed as extra "key=value" step arguments after the positional ones, e.g.
+ *     Step1 <jarBucketName> <inputPath> <outputPath> step1.combine.inMapper=true
+ */
+class PipelineOptions {
+    /** Where Step1 writes the L/F totals and Step3 reads them, s3a://<jarBucketName>/counters by default. */
+    public static final String COUNTERS_KEY = "pipeline.counters";
+
+    /** The source of the settings copied by apply, see isSet */
+    private static final String SOURCE = "pipeline option";
+
+    public static String countersPath(Configuration conf, String jarBucketName) {
+        return conf.get(COUNTERS_KEY, "s3a://" + jarBucketName + "/counters");
+    }
+
+    /**
+     * Copy every "key=value" argument from index `from` onwards into the configuration.
+     */
+    public static void apply(Configuration conf, String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) {
+                System.err.println("[WARN] Ignoring argument, expected key=value: " + args[i]);
+                continue;
+            }
+            String key = args[i].substring(0, eq);
+            String value = args[i].substring(eq + 1);
+            System.out.println("[DEBUG] Option " + key + "=" + value);
+            conf.set(key, value, SOURCE);
+        }
+    }
+
+    /**
+     * True if the key was given as a "key=value" argument, rather than set by a default or the cluster configuration.
+     */
+    public static boolean isSet(Configuration conf, String key) {
+        String[] sources = conf.getPropertySources(key);
+        return sources != null && Arrays.asList(sources).contains(SOURCE);
+    }
+}
@@ -0,0 +1,64 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Samples the records of a step's SequenceFile output from the driver, for SkewPlan and the Step4 salt ranges.
+ *
+ * The sample is made of runs of records read after the sync marker of random positions, spread over the part files
+ * by size: a position costs one seek and the decompression of one block. An output smaller than 64 MB is read whole.
+ */
+class RecordSampler {
+    // Records read at each sampled position
+    private static final int RUN_LENGTH = 250;
+    private static final long FULL_READ_BYTES = 64L << 20;
+    private static final long SEED = 42;
+
+    public interface RecordHandler<K, V> {
+        void record(K key, V value) throws IOException;
+    }
+
+    /**
+     * Hand about sampleSize records of the files matching glob to the handler, in the key and value instances.
+     */
+    public static <K extends Writable, V extends Writable> void sample(Configuration conf, Path glob, int sampleSize,
+                                                                      K key, V value, RecordHandler<K, V> handler)
+            throws IOException {
+        FileSystem fs = glob.getFileSystem(conf);
+        FileStatus[] parts = fs.globStatus(glob);
+        if (parts == null) {
+            throw new IOException("No input for sampling: " + glob);
+        }
+        long totalBytes = 0;
+        for (FileStatus part : parts) {
+            totalBytes += part.getLen();
+        }
+        boolean readAll = totalBytes <= FULL_READ_BYTES;
+        int positions = (int) Math.ceil((double) sampleSize / RUN_LENGTH);
+
+        Random random = new Random(SEED);
+        for (FileStatus part : parts) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(part.getPath()))) {
+                if (readAll) {
+                    while (reader.next(key, value)) {
+                        handler.record(key, value);
+                    }
+                    continue;
+                }
+                int filePositions = (int) Math.max(1, Math.round((double) positions * part.getLen() / totalBytes));
+                for (int i = 0; i < filePositions; i++) {
+                    reader.sync((long) (random.nextDouble() * part.getLen()));
+                    for (int r = 0; r < RUN_LENGTH && reader.next(key, value); r++) {
+                        handler.record(key, value);
+                    }
+                }
+            }
+        }
+    }
+}
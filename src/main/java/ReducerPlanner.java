@@ -0,0 +1,226 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sizes a job of Steps 2 to 4 from what the job before it did: the number of reducers, the map sort buffer
+ * and the combined split size (see CombinedInput).
+ *
+ * Every step writes the counters the plan needs next to its output, in _planner_stats (hidden from the
+ * input formats of the next step). The next job estimates the uncompressed bytes it will shuffle as
+ *     reduce output records of the previous job * bytes per map output record of the previous job * expansion
+ * with expansion the number of map output records per input record (2 for Step2, which maps every lf record
+ * twice, 1 for Step3, planner.expansion to change it). Step4's records don't look like Step3's, it estimates
+ * the bytes its map writes per input record (see expansion(Stats, double)). Then
+ *  - reducers = shuffle bytes / planner.bytesPerReducer, at most planner.maxReducers,
+ *  - the split size is what fills up to planner.maxSortMb of sort buffer, so a map task spills once,
+ *  - the sort buffer fits the map output of one split (or of the whole input, if smaller).
+ *
+ * A setting given as a key=value option (mapreduce.job.reduces, mapreduce.task.io.sort.mb,
+ * pipeline.combine.splitSize) is kept. planner.enabled=false turns the planner off. Without stats
+ * (the previous step ran before the planner existed) the job keeps the cluster defaults.
+ */
+class ReducerPlanner {
+    public static final String ENABLED_KEY = "planner.enabled";
+    public static final String BYTES_PER_REDUCER_KEY = "planner.bytesPerReducer";
+    public static final String MAX_REDUCERS_KEY = "planner.maxReducers";
+    public static final String MAX_SORT_MB_KEY = "planner.maxSortMb";
+    public static final String EXPANSION_KEY = "planner.expansion";
+
+    public static final long DEFAULT_BYTES_PER_REDUCER = 1L << 30;
+    public static final int DEFAULT_MAX_REDUCERS = 256;
+    public static final int DEFAULT_MAX_SORT_MB = 512;
+
+    public static final String STATS_NAME = "_planner_stats";
+
+    // Hadoop's default sort buffer, never planned below it
+    private static final int MIN_SORT_MB = 100;
+    private static final long MIN_SPLIT_SIZE = 32L << 20;
+    private static final long MAX_SPLIT_SIZE = 1L << 30;
+    // Part of the sort buffer filled before a spill starts (mapreduce.map.sort.spill.percent)
+    private static final double SPILL_PERCENT = 0.8;
+
+    /** The counters of a finished job the plan of the next one is based on. */
+    public static class Stats {
+        public long mapOutputBytes;
+        public long mapOutputRecords;
+        public long reduceOutputRecords;
+        public long outputBytes;
+
+        /** Estimated uncompressed size of the job's output. */
+        public long uncompressedOutputBytes() {
+            if (mapOutputRecords == 0) {
+                return 0;
+            }
+            return (long) ((double) mapOutputBytes / mapOutputRecords * reduceOutputRecords);
+        }
+    }
+
+    /** The decisions for one job, see plan. */
+    public static class Plan {
+        public long shuffleBytes;
+        public int reducers;
+        public long splitSize;
+        public int sortMb;
+
+        @Override
+        public String toString() {
+            return String.format("%,d estimated shuffle bytes -> %d reducers, %d MB splits, %d MB sort buffer",
+                    shuffleBytes, reducers, splitSize >> 20, sortMb);
+        }
+    }
+
+    /**
+     * The plan for a job reading the output described by stats, no I/O.
+     */
+    public static Plan plan(Stats stats, Configuration conf, double defaultExpansion) {
+        long bytesPerReducer = conf.getLong(BYTES_PER_REDUCER_KEY, DEFAULT_BYTES_PER_REDUCER);
+        int maxReducers = conf.getInt(MAX_REDUCERS_KEY, DEFAULT_MAX_REDUCERS);
+        // A sort buffer given as an option is the one the splits have to fit in
+        int maxSortMb = PipelineOptions.isSet(conf, MRJobConfig.IO_SORT_MB) ? conf.getInt(MRJobConfig.IO_SORT_MB, MIN_SORT_MB)
+                : conf.getInt(MAX_SORT_MB_KEY, DEFAULT_MAX_SORT_MB);
+        double expansion = conf.getDouble(EXPANSION_KEY, defaultExpansion);
+
+        Plan plan = new Plan();
+        plan.shuffleBytes = (long) (stats.uncompressedOutputBytes() * expansion);
+        plan.reducers = (int) Math.max(1, Math.min(maxReducers, ceilDiv(plan.shuffleBytes, bytesPerReducer)));
+
+        // Map output bytes per byte of input on disk
+        double ratio = stats.outputBytes == 0 ? 1 : (double) plan.shuffleBytes / stats.outputBytes;
+        long fullBuffer = (long) (maxSortMb * SPILL_PERCENT * (1 << 20));
+        plan.splitSize = Math.max(MIN_SPLIT_SIZE, Math.min(MAX_SPLIT_SIZE, (long) (fullBuffer / Math.max(ratio, 1e-9))));
+
+        // A small input is read by one map task, smaller than a split
+        long mapInput = stats.outputBytes == 0 ? plan.splitSize : Math.min(plan.splitSize, stats.outputBytes);
+        long splitOutputMb = ceilDiv((long) (mapInput * ratio / SPILL_PERCENT), 1 << 20);
+        plan.sortMb = (int) Math.max(MIN_SORT_MB, Math.min(maxSortMb, splitOutputMb));
+        return plan;
+    }
+
+    /**
+     * The expansion of a job whose map writes about bytesPerInputRecord bytes for every input record, for a job
+     * whose map output records don't look like the previous job's (the expansion counts map output records
+     * of the previous job's size).
+     */
+    public static double expansion(Stats stats, double bytesPerInputRecord) {
+        if (stats.mapOutputBytes == 0) {
+            return 1;
+        }
+        return bytesPerInputRecord / ((double) stats.mapOutputBytes / stats.mapOutputRecords);
+    }
+
+    /**
+     * The stats in inputPath, for a job that estimates its own expansion: null if the planner is off,
+     * planner.expansion is given or there are no stats.
+     */
+    public static Stats expansionStats(Configuration conf, String inputPath) throws IOException {
+        if (!conf.getBoolean(ENABLED_KEY, true) || conf.get(EXPANSION_KEY) != null) {
+            return null;
+        }
+        return readStats(conf, new Path(inputPath, STATS_NAME));
+    }
+
+    /**
+     * Plan the job from the stats in inputPath and apply what wasn't given as an option.
+     * Call it before CombinedInput.addInputPath, which reads the split size.
+     */
+    public static void apply(Job job, String inputPath, double defaultExpansion) throws IOException {
+        Configuration conf = job.getConfiguration();
+        if (!conf.getBoolean(ENABLED_KEY, true)) {
+            return;
+        }
+        Stats stats = readStats(conf, new Path(inputPath, STATS_NAME));
+        if (stats == null) {
+            System.out.println("[INFO] Planner: no " + STATS_NAME + " in " + inputPath + ", " + job.getJobName()
+                    + " keeps the default settings");
+            return;
+        }
+
+        Plan plan = plan(stats, conf, defaultExpansion);
+        System.out.println("[INFO] Planner for " + job.getJobName() + ": " + plan);
+        set(conf, MRJobConfig.NUM_REDUCES, plan.reducers);
+        set(conf, CombinedInput.SPLIT_SIZE_KEY, plan.splitSize);
+        set(conf, MRJobConfig.IO_SORT_MB, plan.sortMb);
+    }
+
+    private static void set(Configuration conf, String key, long value) {
+        if (PipelineOptions.isSet(conf, key)) {
+            System.out.println("[INFO] Planner: keeping " + key + "=" + conf.get(key) + " (planned " + value + ")");
+            return;
+        }
+        conf.setLong(key, value);
+    }
+
+    /**
+     * Write the stats of a successful job into its output directory.
+     */
+    public static void writeStats(Job job) throws IOException {
+        Path outputPath = FileOutputFormat.getOutputPath(job);
+        FileSystem fs = outputPath.getFileSystem(job.getConfiguration());
+
+        Counters counters = job.getCounters();
+        Stats stats = new Stats();
+        stats.mapOutputBytes = counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue();
+        stats.mapOutputRecords = counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue();
+        stats.reduceOutputRecords = counters.findCounter(TaskCounter.REDUCE_OUTPUT_RECORDS).getValue();
+        for (FileStatus status : fs.listStatus(outputPath)) {
+            if (status.isFile() && status.getPath().getName().startsWith("part-")) {
+                stats.outputBytes += status.getLen();
+            }
+        }
+
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                fs.create(new Path(outputPath, STATS_NAME), true), StandardCharsets.UTF_8))) {
+            writer.write("mapOutputBytes " + stats.mapOutputBytes + "\n");
+            writer.write("mapOutputRecords " + stats.mapOutputRecords + "\n");
+            writer.write("reduceOutputRecords " + stats.reduceOutputRecords + "\n");
+            writer.write("outputBytes " + stats.outputBytes + "\n");
+        }
+    }
+
+    /**
+     * The stats written by writeStats, null if there are none.
+     */
+    public static Stats readStats(Configuration conf, Path path) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        if (!fs.exists(path)) {
+            return null;
+        }
+        Stats stats = new Stats();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 2) {
+                    continue;
+                }
+                long value = Long.parseLong(parts[1]);
+                switch (parts[0]) {
+                    case "mapOutputBytes": stats.mapOutputBytes = value; break;
+                    case "mapOutputRecords": stats.mapOutputRecords = value; break;
+                    case "reduceOutputRecords": stats.reduceOutputRecords = value; break;
+                    case "outputBytes": stats.outputBytes = value; break;
+                    default: System.err.println("[WARN] Unknown planner stat: " + line);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static long ceilDiv(long a, long b) {
+        return (a + b - 1) / b;
+    }
+}
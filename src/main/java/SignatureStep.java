@@ -0,0 +1,432 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+///
+/// Candidate similar pairs over the whole vocabulary from locality sensitive hashing, scored with the exact
+/// Step4 vectors. Runs on Step3's output after DictionaryStep, in three jobs:
+///
+///     vectors:    group by lexeme, write its SparseVector (MapFiles keyed by lexeme id), and its MinHash
+///                 (Jaccard) and SimHash (cosine, random hyperplanes) signatures cut into LSH bands
+///     candidates: group by band bucket, every two lexemes of a bucket are a candidate pair.
+///                 Buckets with more than signature.maxBucket lexemes are skipped
+///     scores:     group by candidate pair, so each is scored once, with the same 24 values as Step4
+///
+/// The signatures are over the features with a positive signature.measure (freq, prob, pmi or t_test, default pmi),
+/// SimHash weighs them by it. Two lexemes become candidates when all the rows of at least one band agree.
+///
+public class SignatureStep {
+    public static final String MEASURE_KEY = "signature.measure";
+    public static final String MINHASH_BANDS_KEY = "signature.minhash.bands";
+    public static final String MINHASH_ROWS_KEY = "signature.minhash.rows";
+    public static final String SIMHASH_BANDS_KEY = "signature.simhash.bands";
+    public static final String SIMHASH_ROWS_KEY = "signature.simhash.rows";
+    public static final String MAX_BUCKET_KEY = "signature.maxBucket";
+    public static final String SEED_KEY = "signature.seed";
+    public static final String VECTORS_KEY = "signature.vectors";
+
+    public static final String BUCKETS = "buckets";
+
+    ///
+    /// input: <key, value>: key = LexemeFeatureKey(lexeme, feature), or with pipeline.ids=true (lexeme id, feature id),
+    ///                      value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
+    ///
+    /// output: <key, value>: key = (lexeme id << 32 | feature id), value = AssocVector
+    ///
+    public static class MapperClass<K> extends Mapper<K, AssocVector, LongWritable, AssocVector> {
+        private WordTable lexemes;
+        private WordTable features;
+
+        private final LongWritable outKey = new LongWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            if (!context.getConfiguration().getBoolean(DictionaryStep.IDS_KEY, false)) {
+                lexemes = DictionaryStep.openCached(DictionaryStep.LEXEMES);
+                features = DictionaryStep.openCached(DictionaryStep.FEATURES);
+            }
+        }
+
+        @Override
+        public void map(K key, AssocVector assoc, Context context) throws IOException, InterruptedException {
+            if (lexemes == null) {
+                outKey.set(((LongWritable) key).get());
+            } else {
+                LexemeFeatureKey lexemeFeature = (LexemeFeatureKey) key;
+                Text lexemeWord = lexemeFeature.getLexeme();
+                Text featureWord = lexemeFeature.getFeature();
+                int lexeme = lexemes.find(lexemeWord.getBytes(), 0, lexemeWord.getLength());
+                int feature = features.find(featureWord.getBytes(), 0, featureWord.getLength());
+                if (lexeme < 0 || feature < 0) {
+                    context.getCounter("Signatures", "MISSING_IDS").increment(1);
+                    return;
+                }
+                outKey.set(PairCount.pack(lexeme, feature));
+            }
+            context.write(outKey, assoc);
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = (lexeme id, feature id), values = AssocVector
+    ///                      (sorted by feature id, grouped by the lexeme)
+    ///
+    /// output: <key, value>: key = lexeme id, value = SparseVector of all its features
+    ///         buckets:      key = (band << 32 | hash of the band's rows), value = lexeme id
+    ///
+    public static class ReducerClass extends Reducer<LongWritable, AssocVector, IntWritable, SparseVector> {
+        private int measure;
+        private int minHashBands;
+        private int minHashRows;
+        private int simHashBands;
+        private int simHashRows;
+
+        private long[] minHashSeeds;
+        private long[] simHashSeeds;
+        private long[] minHash;
+        private double[] simHashSums;
+
+        private MultipleOutputs<IntWritable, SparseVector> outputs;
+        private final IntWritable outKey = new IntWritable();
+        private final SparseVector outValue = new SparseVector();
+        private final LongWritable bucket = new LongWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            measure = AssocVector.measure(conf.get(MEASURE_KEY, "pmi"));
+            minHashBands = conf.getInt(MINHASH_BANDS_KEY, 20);
+            minHashRows = conf.getInt(MINHASH_ROWS_KEY, 5);
+            simHashBands = conf.getInt(SIMHASH_BANDS_KEY, 16);
+            simHashRows = conf.getInt(SIMHASH_ROWS_KEY, 16);
+
+            long seed = conf.getLong(SEED_KEY, 42);
+            minHashSeeds = seeds(seed, minHashBands * minHashRows);
+            simHashSeeds = seeds(~seed, (simHashBands * simHashRows + 63) / 64);
+            minHash = new long[minHashBands * minHashRows];
+            simHashSums = new double[simHashSeeds.length * 64];
+
+            outputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<AssocVector> values, Context context) throws IOException, InterruptedException {
+            outValue.clear();
+            for (AssocVector value : values) {
+                // The framework refills key for every value
+                outValue.add(PairCount.featureId(key.get()), value);
+            }
+            int lexeme = PairCount.lexemeId(key.get());
+            outKey.set(lexeme);
+            context.write(outKey, outValue);
+
+            Arrays.fill(minHash, Long.MAX_VALUE);
+            Arrays.fill(simHashSums, 0);
+            boolean empty = true;
+            double[] measures = outValue.values();
+            for (int i = 0; i < outValue.size(); i++) {
+                double weight = measures[i * AssocVector.SIZE + measure];
+                if (!(weight > 0)) {
+                    continue;
+                }
+                empty = false;
+                long feature = outValue.feature(i);
+
+                for (int h = 0; h < minHash.length; h++) {
+                    minHash[h] = Math.min(minHash[h], mix(feature ^ minHashSeeds[h]));
+                }
+
+                // 64 random +-1 hyperplane coordinates of the feature per hash
+                for (int block = 0; block < simHashSeeds.length; block++) {
+                    long signs = mix(feature ^ simHashSeeds[block]);
+                    for (int bit = 0; bit < 64; bit++) {
+                        simHashSums[block * 64 + bit] += (signs >>> bit & 1) == 0 ? weight : -weight;
+                    }
+                }
+            }
+            if (empty) {
+                context.getCounter("Signatures", "EMPTY_VECTORS").increment(1);
+                return;
+            }
+
+            for (int band = 0; band < minHashBands; band++) {
+                long hash = band;
+                for (int row = 0; row < minHashRows; row++) {
+                    hash = mix(hash * 31 + minHash[band * minHashRows + row]);
+                }
+                writeBucket(band, hash);
+            }
+            for (int band = 0; band < simHashBands; band++) {
+                long hash = band;
+                for (int row = 0; row < simHashRows; row++) {
+                    hash = hash * 31 + (simHashSums[band * simHashRows + row] >= 0 ? 1 : 0);
+                }
+                writeBucket(minHashBands + band, mix(hash));
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            outputs.close();
+        }
+
+        private void writeBucket(int band, long hash) throws IOException, InterruptedException {
+            bucket.set(((long) band << 32) | (hash & 0xFFFFFFFFL));
+            outputs.write(BUCKETS, bucket, outKey);
+        }
+    }
+
+    ///
+    /// Partition by the lexeme id, the scores job finds a lexeme's MapFile the same way
+    ///
+    public static class PartitionerClass extends Partitioner<LongWritable, AssocVector> {
+
+        @Override
+        public int getPartition(LongWritable key, AssocVector value, int numPartitions) {
+            return PairCount.lexemeId(key.get()) % numPartitions;
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = band bucket, values = lexeme ids
+    ///
+    /// output: <key, value>: key = (lexeme a << 32 | lexeme b) with a < b, value = none
+    ///
+    public static class CandidateReducerClass extends Reducer<LongWritable, IntWritable, LongWritable, NullWritable> {
+        private int maxBucket;
+
+        private int size;
+        private int[] lexemes = new int[64];
+
+        private final LongWritable outKey = new LongWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            maxBucket = context.getConfiguration().getInt(MAX_BUCKET_KEY, 200);
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            size = 0;
+            for (IntWritable value : values) {
+                if (size == maxBucket) {
+                    context.getCounter("Signatures", "SKIPPED_BUCKETS").increment(1);
+                    return;
+                }
+                if (size == lexemes.length) {
+                    lexemes = Arrays.copyOf(lexemes, size * 2);
+                }
+                lexemes[size++] = value.get();
+            }
+
+            for (int i = 0; i < size; i++) {
+                for (int j = i + 1; j < size; j++) {
+                    int a = Math.min(lexemes[i], lexemes[j]);
+                    int b = Math.max(lexemes[i], lexemes[j]);
+                    outKey.set(PairCount.pack(a, b));
+                    context.write(outKey, NullWritable.get());
+                }
+            }
+        }
+    }
+
+    ///
+    /// Writes every pair once, also as the combiner of the scores job
+    ///
+    public static class DistinctReducerClass extends Reducer<LongWritable, NullWritable, LongWritable, NullWritable> {
+
+        @Override
+        public void reduce(LongWritable key, Iterable<NullWritable> values, Context context) throws IOException, InterruptedException {
+            context.write(key, NullWritable.get());
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = (lexeme a << 32 | lexeme b), values = none
+    ///
+    /// output: <key, value>: key = a b candidate,
+    ///                      value = 24-dimensioned similarity vector, as in Step4
+    ///
+    public static class ScoreReducerClass extends Reducer<LongWritable, NullWritable, Text, Text> {
+        private WordTable lexemes;
+        private MapFile.Reader[] vectors;
+
+        // Pairs arrive sorted by a, so its vector is read once for all of them
+        private int lastA = -1;
+        private final IntWritable id = new IntWritable();
+        private final SparseVector v1 = new SparseVector();
+        private final SparseVector v2 = new SparseVector();
+        private final SimilarityKernel kernel = new SimilarityKernel();
+        private final double[] similarity = new double[SimilarityKernel.DIMENSIONS];
+
+        private final Text outKey = new Text();
+        private final Text outValue = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            lexemes = DictionaryStep.openCached(DictionaryStep.LEXEMES);
+            vectors = VectorStep.openVectors(context.getConfiguration(), context.getConfiguration().get(VECTORS_KEY));
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<NullWritable> values, Context context) throws IOException, InterruptedException {
+            int a = PairCount.lexemeId(key.get());
+            int b = PairCount.featureId(key.get());
+            if (a != lastA) {
+                lookup(a, v1);
+                lastA = a;
+            }
+            lookup(b, v2);
+
+            SparseVector.similarity(v1, v2, kernel);
+            kernel.result(similarity);
+            kernel.reset();
+
+            outKey.set(lexemes.word(a) + " " + lexemes.word(b) + " candidate");
+            outValue.set(Arrays.toString(similarity));
+            context.write(outKey, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (MapFile.Reader reader : vectors) {
+                reader.close();
+            }
+        }
+
+        private void lookup(int lexeme, SparseVector vector) throws IOException {
+            id.set(lexeme);
+            if (vectors[lexeme % vectors.length].get(id, vector) == null) {
+                vector.clear();
+            }
+        }
+    }
+
+    private static long[] seeds(long seed, int count) {
+        long[] seeds = new long[count];
+        long state = seed;
+        for (int i = 0; i < count; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            seeds[i] = mix(state);
+        }
+        return seeds;
+    }
+
+    /**
+     * The SplitMix64 finalizer, a cheap 64 bit hash with good avalanche.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public static Job createVectorJob(Configuration conf, String inputPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "SignatureStep vectors");
+
+        job.setJarByClass(SignatureStep.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setPartitionerClass(PartitionerClass.class);
+        job.setGroupingComparatorClass(VectorStep.GroupingComparator.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(AssocVector.class);
+
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(SparseVector.class);
+        job.setOutputFormatClass(MapFileOutputFormat.class);
+        MultipleOutputs.addNamedOutput(job, BUCKETS, BlockSequenceFileOutputFormat.class, LongWritable.class, IntWritable.class);
+        // Each vector is compressed on its own, a lookup would otherwise inflate a whole block (not the buckets)
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.RECORD);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        DictionaryStep.addToCache(job, conf.get(DictionaryStep.DICTIONARY_KEY));
+
+        FileInputFormat.addInputPath(job, new Path(inputPath + "part-r*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static Job createCandidateJob(Configuration conf, String vectorsPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "SignatureStep candidates");
+
+        job.setJarByClass(SignatureStep.class);
+        job.setMapperClass(Mapper.class);
+        job.setReducerClass(CandidateReducerClass.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(IntWritable.class);
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(NullWritable.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, new Path(vectorsPath + BUCKETS + "-r-*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static Job createScoreJob(Configuration conf, String candidatesPath, String vectorsPath, String outputPath) throws IOException {
+        conf.set(VECTORS_KEY, vectorsPath);
+        Job job = Job.getInstance(conf, "SignatureStep scores");
+
+        job.setJarByClass(SignatureStep.class);
+        job.setMapperClass(Mapper.class);
+        job.setCombinerClass(DistinctReducerClass.class);
+        job.setReducerClass(ScoreReducerClass.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(NullWritable.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        DictionaryStep.addToCache(job, conf.get(DictionaryStep.DICTIONARY_KEY));
+
+        FileInputFormat.addInputPath(job, new Path(candidatesPath + "part-r*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] SIGNATURE STEP started!");
+
+        String inputPath = args[2];
+        String workPath = args[3].endsWith("/") ? args[3] : args[3] + "/";
+        String outputPath = args[4];
+        String dictionaryPath = args[5];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 6);
+        conf.set(DictionaryStep.DICTIONARY_KEY, dictionaryPath);
+
+        boolean success = createVectorJob(new Configuration(conf), inputPath, workPath + "vectors").waitForCompletion(true)
+                && createCandidateJob(new Configuration(conf), workPath + "vectors/", workPath + "candidates").waitForCompletion(true)
+                && createScoreJob(new Configuration(conf), workPath + "candidates/", workPath + "vectors", outputPath).waitForCompletion(true);
+        System.exit(success ? 0 : 1);
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.Arrays;
+
+/**
+ * The running sums of the Step4 diff matrix for one word pair, all in one flat array.
+ *
+ * Every sum is stored for the four association measures next to each other (acc[SUM + measure]),
+ * so add() updates all of them in a single loop over the measures, with no per-measure calls.
+ * result() turns the sums into the 24 values of the similarity vector, row by row:
+ *
+ *              distManhattan   distEuclidean   simCosine   simJaccard  simDice  simJS
+ * assoc_freq
+ * assoc_prob
+ * assoc_PMI
+ * assoc_t_test
+ *
+ * The sums of disjoint feature ranges can be computed apart and merged (see Step4's salted mode), all of them add up
+ * except the JS sums, which restart on a 0/0 measure. A kernel remembers which measures restarted, so merge() keeps
+ * the JS sums of a later range that restarted instead of adding to them.
+ */
+public class SimilarityKernel {
+    public static final int DIMENSIONS = AssocVector.SIZE * 6;
+
+    private static final int M = AssocVector.SIZE;
+    private static final double LOG_2 = Math.log(2);
+
+    // Offsets of the sums in acc
+    private static final int MANHATTAN = 0;
+    private static final int EUCLIDEAN = M;
+    private static final int DOT = 2 * M;
+    private static final int NORM1 = 3 * M;
+    private static final int NORM2 = 4 * M;
+    private static final int MIN = 5 * M;     // Jaccard and Dice numerator
+    private static final int MAX = 6 * M;     // Jaccard denominator
+    private static final int SUM = 7 * M;     // Dice denominator
+    private static final int JS1 = 8 * M;
+    private static final int JS2 = 9 * M;
+    /** Number of running sums, the size of the partial() array */
+    public static final int SIZE = 10 * M;
+
+    private final double[] acc = new double[SIZE];
+    // Bit i set if the JS sums of measure i restarted since reset()
+    private int restarts;
+
+    /**
+     * Adds a feature both words have, v1 of w1 and v2 of w2.
+     */
+    public void add(double[] v1, double[] v2) {
+        add(v1, 0, v2, 0);
+    }
+
+    /**
+     * As add(v1, v2), with the measures at v1[o1 ..] and v2[o2 ..].
+     */
+    public void add(double[] v1, int o1, double[] v2, int o2) {
+        final double[] a = acc;
+        for (int i = 0; i < M; i++) {
+            double x = v1[o1 + i];
+            double y = v2[o2 + i];
+            double diff = x - y;
+            double sum = x + y;
+            double min = Math.min(x, y);
+
+            a[MANHATTAN + i] += Math.abs(diff);
+            a[EUCLIDEAN + i] += sum * sum;
+            a[DOT + i] += x * y;
+            a[NORM1 + i] += x * x;
+            a[NORM2 + i] += y * y;
+            a[MIN + i] += min;
+            a[MAX + i] += Math.max(x, y);
+            a[SUM + i] += sum;
+
+            if (x == 0 && y == 0) { // as the original handleSimJS, a 0/0 measure restarts the JS sums
+                a[JS1 + i] = 0;
+                a[JS2 + i] = 0;
+                restarts |= 1 << i;
+            } else {
+                double mean = sum / 2.0;
+                if (mean > 0) {
+                    a[JS1 + i] += x > 0 ? x * Math.log(x / mean) : 0;
+                    a[JS2 + i] += y > 0 ? y * Math.log(y / mean) : 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a feature only one of the words has, the other side counts as all zeros.
+     */
+    public void addOneSided(double[] v, boolean left) {
+        addOneSided(v, 0, left);
+    }
+
+    public void addOneSided(double[] v, int offset, boolean left) {
+        final double[] a = acc;
+        final int norm = left ? NORM1 : NORM2;
+        final int js = left ? JS1 : JS2;
+        for (int i = 0; i < M; i++) {
+            double x = v[offset + i];
+            double square = x * x;
+
+            a[MANHATTAN + i] += Math.abs(x);
+            a[EUCLIDEAN + i] += square;
+            a[norm + i] += square;
+            a[MIN + i] += Math.min(x, 0);
+            a[MAX + i] += Math.max(x, 0);
+            a[SUM + i] += x;
+
+            if (x == 0) {
+                a[JS1 + i] = 0;
+                a[JS2 + i] = 0;
+                restarts |= 1 << i;
+            } else if (x > 0) {
+                a[js + i] += x * LOG_2; // x * log(x / (x / 2))
+            }
+        }
+    }
+
+    /**
+     * Writes the 24 similarity values, in the order of the diff matrix rows, into out.
+     * Meaningless results (NaN, empty norms) count as unrelated.
+     */
+    public void result(double[] out) {
+        final double[] a = acc;
+        for (int i = 0, o = 0; i < M; i++, o += 6) {
+            double manhattan = a[MANHATTAN + i];
+            out[o] = Double.isNaN(manhattan) ? Double.POSITIVE_INFINITY : manhattan;
+
+            double euclidean = a[EUCLIDEAN + i];
+            out[o + 1] = euclidean < 0 || Double.isNaN(euclidean) ? Double.POSITIVE_INFINITY : Math.sqrt(euclidean);
+
+            double norm1 = a[NORM1 + i];
+            double norm2 = a[NORM2 + i];
+            double cosine = a[DOT + i] / (Math.sqrt(norm1) * Math.sqrt(norm2));
+            out[o + 2] = norm1 <= 0 || norm2 <= 0 || Double.isNaN(cosine) ? 0 : cosine;
+
+            double jaccard = a[MIN + i] / a[MAX + i];
+            out[o + 3] = a[MAX + i] == 0 || Double.isNaN(jaccard) ? 0 : jaccard;
+
+            double dice = 2 * a[MIN + i] / a[SUM + i];
+            out[o + 4] = a[SUM + i] == 0 || Double.isNaN(dice) ? 0 : dice;
+
+            double js = a[JS1 + i] + a[JS2 + i];
+            out[o + 5] = Double.isNaN(js) ? Double.POSITIVE_INFINITY : js;
+        }
+    }
+
+    /**
+     * Merges the sums of the features sorted after the ones added so far, as copied by partial() from another kernel.
+     */
+    public void merge(double[] partial, int partialRestarts) {
+        final double[] a = acc;
+        for (int j = 0; j < JS1; j++) {
+            a[j] += partial[j];
+        }
+        for (int i = 0; i < M; i++) {
+            if ((partialRestarts & 1 << i) != 0) {
+                a[JS1 + i] = partial[JS1 + i];
+                a[JS2 + i] = partial[JS2 + i];
+            } else {
+                a[JS1 + i] += partial[JS1 + i];
+                a[JS2 + i] += partial[JS2 + i];
+            }
+        }
+        restarts |= partialRestarts;
+    }
+
+    /**
+     * Copies the running sums into out (SIZE values) and returns the measures whose JS sums restarted, for merge().
+     */
+    public int partial(double[] out) {
+        System.arraycopy(acc, 0, out, 0, SIZE);
+        return restarts;
+    }
+
+    public void reset() {
+        Arrays.fill(acc, 0);
+        restarts = 0;
+    }
+}
@@ -0,0 +1,192 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+///
+/// Answers similarity queries for any two words at request time, from a LexemeVectorStore and a trained classifier.
+///
+/// usage: SimilarityService <storeDir> [model] [port]
+///
+/// model is a serialized Weka classifier (Step5's step5_forest.model with step5.mode=train), or an ARFF file
+/// (e.g. Step5's step5_result.arff, with step5.writeArff=true) to train a RandomForest on at startup. Without it queries only get the similarity vector.
+///
+///     GET /similarity?w1=<word>&w2=<word>
+///
+/// answers with one Step4 style line, the predicted class in place of the gold label:
+///
+///     w1 w2 similar\t[24 values]\tp=0.93
+///
+/// The words are stemmed like the gold standard. 404 if neither word has features, as VectorStep skips those pairs.
+///
+public class SimilarityService {
+    public static final int DEFAULT_PORT = 8080;
+
+    private final LexemeVectorStore store;
+    private final Classifier classifier;
+    private final Instances header = VectorSchema.header();
+
+    public SimilarityService(LexemeVectorStore store, Classifier classifier) {
+        this.store = store;
+        this.classifier = classifier;
+    }
+
+    /**
+     * The answer to one query: the stemmed words, their 24 similarity values and, with a classifier,
+     * the predicted class and its probability.
+     */
+    public static class Result {
+        public final String word1;
+        public final String word2;
+        public final double[] similarity;
+        public final String label;
+        public final double probability;
+
+        Result(String word1, String word2, double[] similarity, String label, double probability) {
+            this.word1 = word1;
+            this.word2 = word2;
+            this.similarity = similarity;
+            this.label = label;
+            this.probability = probability;
+        }
+
+        @Override
+        public String toString() {
+            String line = word1 + " " + word2 + " " + (label == null ? "?" : label) + "\t" + Arrays.toString(similarity);
+            return label == null ? line : line + "\tp=" + probability;
+        }
+    }
+
+    /**
+     * Compute the same 24 values as Step4 for a word pair, and classify them.
+     *
+     * @return null if neither word has any features
+     */
+    public Result query(String word1, String word2) throws Exception {
+        String stem1 = Stemmer.stemWord(word1);
+        String stem2 = Stemmer.stemWord(word2);
+        int lexeme1 = store.find(stem1);
+        int lexeme2 = store.find(stem2);
+        if (store.features(lexeme1) == 0 && store.features(lexeme2) == 0) {
+            return null;
+        }
+
+        SimilarityKernel kernel = new SimilarityKernel();
+        store.similarity(lexeme1, lexeme2, kernel);
+        double[] similarity = new double[SimilarityKernel.DIMENSIONS];
+        kernel.result(similarity);
+
+        if (classifier == null) {
+            return new Result(stem1, stem2, similarity, null, Double.NaN);
+        }
+        Instance instance = VectorSchema.instance(header, similarity);
+        double[] distribution;
+        synchronized (classifier) { // Weka doesn't promise classifiers are thread safe
+            distribution = classifier.distributionForInstance(instance);
+        }
+        int best = Utils.maxIndex(distribution);
+        return new Result(stem1, stem2, similarity, header.classAttribute().value(best), distribution[best]);
+    }
+
+    /**
+     * Load a serialized classifier, or train a RandomForest on an ARFF file.
+     */
+    public static Classifier loadModel(File file) throws Exception {
+        if (!file.getName().endsWith(".arff")) {
+            return (Classifier) SerializationHelper.read(file.getAbsolutePath());
+        }
+        Instances data = DataSource.read(file.getAbsolutePath());
+        data.setClassIndex(data.numAttributes() - 1);
+        Classifier cls = new RandomForest();
+        cls.buildClassifier(data);
+        return cls;
+    }
+
+    /**
+     * Serve /similarity on the port, one handler thread per core.
+     */
+    public HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/similarity", this::handle);
+        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+        server.start();
+        return server;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        int status;
+        String body;
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String word1 = params.get("w1");
+            String word2 = params.get("w2");
+            if (word1 == null || word2 == null) {
+                status = 400;
+                body = "Expected /similarity?w1=<word>&w2=<word>";
+            } else {
+                Result result = query(word1, word2);
+                status = result == null ? 404 : 200;
+                body = result == null ? "No features for " + word1 + " or " + word2 : result.toString();
+            }
+        } catch (Exception e) {
+            status = 500;
+            body = "Failed: " + e.getMessage();
+        }
+
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SimilarityService <storeDir> [model] [port]");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        LexemeVectorStore store = LexemeVectorStore.open(new File(args[0]));
+        Classifier classifier = args.length > 1 ? loadModel(new File(args[1])) : null;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+
+        new SimilarityService(store, classifier).serve(port);
+        System.out.println(String.format("[INFO] Serving %d lexemes on port %d, started in %.2f seconds",
+                store.size(), port, (System.nanoTime() - start) / 1e9));
+    }
+}
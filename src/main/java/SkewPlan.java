@@ -0,0 +1,181 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.mapreduce.Job;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The heavy words of the Step2 join, found by sampling Step1's output.
+ *
+ * A Step2 reducer gets all the lf records of a word on one side, so the lexemes and features found in most pairs
+ * ("be", determiners, punctuation) make a few reducers run far longer than the rest. The plan holds, for the most
+ * frequent words, their share of the lf records the Step2 mappers write. A word whose share is above
+ * step2.skew.fraction / reducers is spread over several reducers (salts): each of its lf records goes to one of them,
+ * picked by the other word of the pair, and its marginal count is replicated to all of them.
+ *
+ * The plan doesn't depend on the number of reducers, it is written once to _skew_plan in Step1's output folder and
+ * reused by later runs of Step2 on the same output.
+ */
+class SkewPlan {
+    public static final String ENABLED_KEY = "step2.skew";
+    public static final String SAMPLE_SIZE_KEY = "step2.skew.sampleSize";
+    public static final String FRACTION_KEY = "step2.skew.fraction";
+    /** The plan file of the job, set by addToCache */
+    public static final String PLAN_KEY = "step2.skew.plan";
+
+    public static final int DEFAULT_SAMPLE_SIZE = 100_000;
+    public static final double DEFAULT_FRACTION = 0.25;
+
+    public static final String PLAN_NAME = "_skew_plan";
+    /** Name of the plan in the task's working directory, see addToCache */
+    public static final String CACHE_NAME = "skew-plan.txt";
+
+    private static final int MAX_WORDS = 10_000;
+
+    private final Map<Text, Double> lexemes = new HashMap<>();
+    private final Map<Text, Double> features = new HashMap<>();
+
+    /**
+     * The words on the side spread over more than one of numPartitions reducers, with their number of salts.
+     */
+    public Map<Text, Integer> heavy(byte side, int numPartitions, double fraction) {
+        Map<Text, Integer> heavy = new HashMap<>();
+        for (Map.Entry<Text, Double> entry : (side == JoinKey.SIDE_LEXEME ? lexemes : features).entrySet()) {
+            int salts = salts(entry.getValue(), numPartitions, fraction);
+            if (salts > 1) {
+                heavy.put(entry.getKey(), salts);
+            }
+        }
+        return heavy;
+    }
+
+    /**
+     * The number of reducers a word with this share of the records is spread over.
+     */
+    public static int salts(double share, int numPartitions, double fraction) {
+        if (numPartitions <= 1) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(numPartitions, Math.ceil(share * numPartitions / fraction)));
+    }
+
+    /**
+     * The partition of a record of a word spread over `salts` reducers: the word's own partition plus the salt.
+     */
+    public static int partition(int basePartition, int salt, int numPartitions) {
+        return (basePartition + salt) % numPartitions;
+    }
+
+    /**
+     * Read the plan of Step1's output folder, or sample the output and write it there.
+     */
+    public static Path findOrCreate(Configuration conf, String step1Path) throws IOException {
+        Path planPath = new Path(step1Path, PLAN_NAME);
+        FileSystem fs = planPath.getFileSystem(conf);
+        if (fs.exists(planPath)) {
+            System.out.println("[INFO] Reusing the Step2 skew plan " + planPath);
+            return planPath;
+        }
+
+        long start = System.nanoTime();
+        Map<String, long[]> counts = new HashMap<>();
+        long sampled = sample(conf, new Path(step1Path), conf.getInt(SAMPLE_SIZE_KEY, DEFAULT_SAMPLE_SIZE), counts);
+
+        // Keep the most frequent words, the others can't get past the threshold with any number of reducers
+        List<Map.Entry<String, long[]>> words = new ArrayList<>(counts.entrySet());
+        words.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fs.create(planPath, true),
+                StandardCharsets.UTF_8))) {
+            writer.write("sampled " + sampled + "\n");
+            for (int i = 0; i < Math.min(MAX_WORDS, words.size()) && words.get(i).getValue()[0] > 1; i++) {
+                // key is "<side> <word>"
+                writer.write(words.get(i).getKey().charAt(0) + " " + (double) words.get(i).getValue()[0] / sampled
+                        + " " + words.get(i).getKey().substring(2) + "\n");
+            }
+        }
+        System.out.println(String.format("[INFO] Sampled %,d Step2 records for the skew plan in %.2f seconds: %s",
+                sampled, (System.nanoTime() - start) / 1e9, planPath));
+        return planPath;
+    }
+
+    /*
+     * Count the words of the records the Step2 mappers would write for a sample of Step1's records: an lf record
+     * counts for its lexeme and its feature, l and f records only add to the total. Returns the number of
+     * Step2 records sampled.
+     */
+    private static long sample(Configuration conf, Path dir, int sampleSize, Map<String, long[]> counts)
+            throws IOException {
+        long[] sampled = new long[1];
+        RecordSampler.sample(conf, new Path(dir, "part-r*"), sampleSize, new CountKey(), new VLongWritable(),
+                (key, value) -> sampled[0] += count(key, counts));
+        return sampled[0];
+    }
+
+    private static int count(CountKey key, Map<String, long[]> counts) {
+        if (key.getType() != CountKey.TYPE_LF) {
+            return 1;
+        }
+        counts.computeIfAbsent("l " + key.getFirst(), word -> new long[1])[0]++;
+        counts.computeIfAbsent("f " + key.getSecond(), word -> new long[1])[0]++;
+        return 2;
+    }
+
+    /**
+     * Ship the plan to the tasks of the job.
+     */
+    public static void addToCache(Job job, Path planPath) {
+        URI uri = planPath.toUri();
+        job.addCacheFile(URI.create(uri + "#" + CACHE_NAME));
+        job.getConfiguration().set(PLAN_KEY, uri.toString());
+    }
+
+    /**
+     * The plan shipped by addToCache, from the task's working directory, null if the job has none.
+     */
+    public static SkewPlan openCached(Configuration conf) throws IOException {
+        if (conf.get(PLAN_KEY) == null) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(CACHE_NAME),
+                StandardCharsets.UTF_8))) {
+            return read(reader);
+        }
+    }
+
+    /**
+     * Read the plan of a Step1 output folder, for the driver.
+     */
+    public static SkewPlan read(Configuration conf, Path planPath) throws IOException {
+        FileSystem fs = planPath.getFileSystem(conf);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(planPath), StandardCharsets.UTF_8))) {
+            return read(reader);
+        }
+    }
+
+    private static SkewPlan read(BufferedReader reader) throws IOException {
+        SkewPlan plan = new SkewPlan();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length != 3) {
+                continue; // the sample size
+            }
+            (parts[0].equals("l") ? plan.lexemes : plan.features).put(new Text(parts[2]), Double.parseDouble(parts[1]));
+        }
+        return plan;
+    }
+}
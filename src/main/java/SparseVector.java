@@ -0,0 +1,113 @@
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * All the features of one lexeme, sorted by dictionary feature id, with their four association measures.
+ *
+ * The ids are written as vint deltas, the measures of feature i are values[4 * i .. 4 * i + 3]
+ * in the AssocVector order, so one pair of features is a single SimilarityKernel.add call.
+ */
+public class SparseVector implements Writable {
+    private int size;
+    private int[] features = new int[16];
+    private double[] values = new double[16 * AssocVector.SIZE];
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Append a feature, ids must be added in increasing order.
+     */
+    public void add(int feature, AssocVector assoc) {
+        if (size == features.length) {
+            grow(size * 2);
+        }
+        features[size] = feature;
+        System.arraycopy(assoc.values(), 0, values, size * AssocVector.SIZE, AssocVector.SIZE);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int feature(int i) {
+        return features[i];
+    }
+
+    /** The backing array of the measures, feature i starts at i * AssocVector.SIZE. */
+    public double[] values() {
+        return values;
+    }
+
+    /**
+     * Add the features of both vectors to the kernel, v1 of w1 and v2 of w2, merging them by id.
+     * Features are visited in id order, which is the byte order of the feature words, as in Step4.
+     */
+    public static void similarity(SparseVector v1, SparseVector v2, SimilarityKernel kernel) {
+        final int m = AssocVector.SIZE;
+        int i = 0;
+        int j = 0;
+        while (i < v1.size && j < v2.size) {
+            int f1 = v1.features[i];
+            int f2 = v2.features[j];
+            if (f1 == f2) {
+                kernel.add(v1.values, i * m, v2.values, j * m);
+                i++;
+                j++;
+            } else if (f1 < f2) {
+                kernel.addOneSided(v1.values, i * m, true);
+                i++;
+            } else {
+                kernel.addOneSided(v2.values, j * m, false);
+                j++;
+            }
+        }
+        for (; i < v1.size; i++) {
+            kernel.addOneSided(v1.values, i * m, true);
+        }
+        for (; j < v2.size; j++) {
+            kernel.addOneSided(v2.values, j * m, false);
+        }
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, size);
+        int last = 0;
+        for (int i = 0; i < size; i++) {
+            WritableUtils.writeVInt(out, features[i] - last);
+            last = features[i];
+        }
+        for (int i = 0; i < size * AssocVector.SIZE; i++) {
+            out.writeDouble(values[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        size = WritableUtils.readVInt(in);
+        if (size > features.length) {
+            grow(size);
+        }
+        int last = 0;
+        for (int i = 0; i < size; i++) {
+            last += WritableUtils.readVInt(in);
+            features[i] = last;
+        }
+        for (int i = 0; i < size * AssocVector.SIZE; i++) {
+            values[i] = in.readDouble();
+        }
+    }
+
+    private void grow(int capacity) {
+        features = Arrays.copyOf(features, capacity);
+        values = Arrays.copyOf(values, capacity * AssocVector.SIZE);
+    }
+}
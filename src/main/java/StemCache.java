@@ -0,0 +1,148 @@
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache from a word's surface form to its stem, as produced by Stemmer.stemWord.
+ * Works directly on UTF-8 byte ranges so a cache hit doesn't allocate anything.
+ *
+ * Not thread safe, every task keeps its own instance.
+ */
+class StemCache {
+    public static final String SIZE_KEY = "stemmer.cache.size";
+    public static final int DEFAULT_SIZE = 50000;
+
+    private final Stemmer stemmer = new Stemmer();
+    private final LinkedHashMap<Key, byte[]> cache;
+    private final Key probe = new Key();
+    private char[] chars = new char[64];
+
+    private long hits;
+    private long misses;
+
+    public StemCache(final int maxSize) {
+        cache = new LinkedHashMap<Key, byte[]>(Math.min(maxSize, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Stem the UTF-8 word bytes[start, end).
+     * @return the stemmed UTF-8 bytes, shared with the cache so they must not be modified.
+     */
+    public byte[] stem(byte[] bytes, int start, int end) {
+        probe.set(bytes, start, end - start);
+        byte[] stemmed = cache.get(probe);
+        if (stemmed != null) {
+            hits++;
+            return stemmed;
+        }
+        misses++;
+
+        stemmed = stemUncached(bytes, start, end);
+        Key key = new Key();
+        byte[] copy = new byte[end - start];
+        System.arraycopy(bytes, start, copy, 0, copy.length);
+        key.set(copy, 0, copy.length);
+        cache.put(key, stemmed);
+        return stemmed;
+    }
+
+    public String stem(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        return new String(stem(bytes, 0, bytes.length), StandardCharsets.UTF_8);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    private byte[] stemUncached(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+
+        // Lower case ASCII words here, anything else goes through stemWord
+        boolean letters = length > 0;
+        for (int p = 0; p < length; p++) {
+            int b = bytes[start + p];
+            if (b < 0) {
+                return Stemmer.stemWord(new String(bytes, start, length, StandardCharsets.UTF_8))
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b < 'a' || b > 'z') {
+                letters = false;
+            }
+            chars[p] = (char) b;
+        }
+
+        if (!letters) { // Same as stemWord, the word is only lower cased
+            byte[] lower = new byte[length];
+            for (int p = 0; p < length; p++) {
+                lower[p] = (byte) chars[p];
+            }
+            return lower;
+        }
+
+        stemmer.add(chars, length);
+        stemmer.stem();
+        char[] result = stemmer.getResultBuffer();
+        byte[] stemmed = new byte[stemmer.getResultLength()];
+        for (int p = 0; p < stemmed.length; p++) {
+            stemmed[p] = (byte) result[p];
+        }
+        return stemmed;
+    }
+
+    /* Byte range key, the probe instance points into the caller's buffer. */
+    private static final class Key {
+        private byte[] bytes;
+        private int start;
+        private int length;
+        private int hash;
+
+        void set(byte[] bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+            int h = 1;
+            for (int p = start; p < start + length; p++) {
+                h = 31 * h + bytes[p];
+            }
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (other.length != length || other.hash != hash) {
+                return false;
+            }
+            for (int p = 0; p < length; p++) {
+                if (bytes[start + p] != other.bytes[other.start + p]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -367,17 +367,34 @@ class Stemmer
     public static String stemWord(String word)
     {
         word = word.toLowerCase();
-        if (!word.matches("[a-z]+")){
+        if (!isLowerCaseLetters(word)){
             return word;
         }
 
-        Stemmer stemmer = new Stemmer();
+        Stemmer stemmer = LOCAL.get();
         stemmer.add(word.toCharArray(), word.length());
         stemmer.stem();
 
         return stemmer.toString();
     }
 
+    /* One reusable stemmer per thread for stemWord, stem() resets it after each word. */
+    private static final ThreadLocal<Stemmer> LOCAL = ThreadLocal.withInitial(Stemmer::new);
+
+    /**
+     * Added by us, same as word.matches("[a-z]+") without compiling a regex.
+     */
+    public static boolean isLowerCaseLetters(CharSequence word)
+    {
+        int length = word.length();
+        if (length == 0) return false;
+        for (int c = 0; c < length; c++)
+        {  char ch = word.charAt(c);
+           if (ch < 'a' || ch > 'z') return false;
+        }
+        return true;
+    }
+
    /** Test program for demonstrating the Stemmer.  It reads text from a
     * a list of files, stems each word, and writes the result to standard
     * output. Note that the word stemmed is expected to be in lower case:
@@ -1,113 +1,401 @@
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.VLongWritable;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.mapreduce.*;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 
+import java.io.BufferedReader;
 import java.io.OutputStreamWriter;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
 
 public class Step1 {
+    public static final String COMBINE_KEY = "step1.combine.inMapper";
+    public static final String COMBINE_MAX_BYTES_KEY = "step1.combine.maxBytes";
+    public static final long DEFAULT_COMBINE_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** text (the raw biarcs files, default) or sequence (the output of IngestStep) */
+    public static final String INPUT_KEY = "step1.input";
+    /** Bytes of input per map task when reading IngestStep's SequenceFiles */
+    public static final String SPLIT_SIZE_KEY = "step1.splitSize";
+    public static final long DEFAULT_SPLIT_SIZE = 64L * 1024 * 1024;
+
     ///
     /// input: <key, value>: key = lineID,
     ///                      value = head_word<TAB>syntactic-ngram<TAB>total_count<TAB>counts_by_year
     ///
-    /// output: <key, value>: key = l lexeme or f feature or lf lexeme feature,
+    /// output: <key, value>: key = CountKey(l, lexeme) or CountKey(f, feature) or CountKey(lf, lexeme, feature),
     ///                       value = count
     ///
-    public static class MapperClass extends Mapper<LongWritable, Text, Text, Text> {
+    /// With step1.combine.inMapper=true the counts are summed inside the task and only written
+    /// in cleanup(), or earlier once the map holds more than step1.combine.maxBytes.
+    ///
+    /// With pipeline.goldPruned=true only lexemes of the gold standard get l and lf records.
+    /// f records and the L/F totals are still counted over the whole corpus, so the measures don't change.
+    ///
+    public static class MapperClass extends Mapper<LongWritable, Text, CountKey, VLongWritable> {
+        private NgramParser parser;
+        private StemCache stemCache;
+        private final CountKey outKey = new CountKey();
+        private final VLongWritable outValue = new VLongWritable();
+        private byte[] keyBuffer = new byte[256];
+
+        private Counter totalL;
+        private Counter totalF;
+
+        private ByteCountMap combined;
+        private long maxCombinedBytes;
+
+        // Stemmed gold standard words, null if not pruning
+        private ByteCountMap goldLexemes;
+        private Counter prunedPairs;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            totalL = context.getCounter("TotalCounters", "L");
+            totalF = context.getCounter("TotalCounters", "F");
+
+            stemCache = new StemCache(context.getConfiguration().getInt(StemCache.SIZE_KEY, StemCache.DEFAULT_SIZE));
+            parser = new NgramParser(stemCache);
+
+            Configuration conf = context.getConfiguration();
+            if (conf.getBoolean(COMBINE_KEY, false)) {
+                combined = new ByteCountMap();
+                maxCombinedBytes = conf.getLong(COMBINE_MAX_BYTES_KEY, DEFAULT_COMBINE_MAX_BYTES);
+            }
+            if (conf.getBoolean(GoldStandard.PRUNE_KEY, false)) {
+                try (BufferedReader reader = GoldStandard.openCached()) {
+                    goldLexemes = GoldStandard.vocabulary(reader);
+                }
+                prunedPairs = context.getCounter("GoldPruning", "PRUNED_PAIRS");
+                System.out.println("[DEBUG] Gold pruning with " + goldLexemes.size() + " lexemes");
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (combined != null) {
+                flush(context);
+            }
+            context.getCounter("StemCache", "HITS").increment(stemCache.getHits());
+            context.getCounter("StemCache", "MISSES").increment(stemCache.getMisses());
+        }
 
         @Override
         public void map(LongWritable lineId, Text line, Context context) throws IOException, InterruptedException {
 
-            String[] fields = line.toString().split("\t"); // head_word<TAB>syntactic-ngram<TAB>total_count<TAB>counts_by_year
+            if (!parser.parse(line)) { // Unknown format
+                return;
+            }
+
+            outValue.set(parser.totalCount);
+
+            int emitted = 0;
+            for (int i = 0; i < parser.numTokens; i++) {
+                int pointer = parser.pointer[i]; // e.g. for/IN/prep/1
+                if (pointer <= 0 || pointer > parser.numTokens) { // Unknown format or root
+                    continue;
+                }
+                int head = pointer - 1;
+
+                // Count feature
+                writeKey(context, CountKey.TYPE_F, i, -1);
+
+                if (goldLexemes != null && !parser.stemIn(head, goldLexemes)) {
+                    prunedPairs.increment(1);
+                } else {
+                    // Count lexeme
+                    writeKey(context, CountKey.TYPE_L, head, -1);
+
+                    // Count lexeme feature pair
+                    writeKey(context, CountKey.TYPE_LF, head, i);
+                }
 
-            if (fields.length < 4) { // Unknown format
+                emitted++;
+            }
+
+            // Add to the total count of features and lexemes
+            if (emitted > 0) {
+                totalL.increment(parser.totalCount * emitted);
+                totalF.increment(parser.totalCount * emitted);
+            }
+
+            if (combined != null && combined.memoryBytes() > maxCombinedBytes) {
+                flush(context);
+            }
+        }
+
+        ///
+        /// Write the locally combined counts and empty the map.
+        ///
+        private void flush(Context context) throws IOException, InterruptedException {
+            context.getCounter("InMapperCombining", "FLUSHES").increment(1);
+            context.getCounter("InMapperCombining", "RECORDS").increment(combined.size());
+
+            byte[] arena = combined.arena();
+            for (int entry = 0; entry < combined.size(); entry++) {
+                // type<first>[ <second>], see writeKey
+                int start = combined.keyOffset(entry);
+                int end = start + combined.keyLength(entry);
+                int space = start + 1;
+                while (space < end && arena[space] != ' ') {
+                    space++;
+                }
+                int secondStart = Math.min(space + 1, end);
+                outKey.set(arena[start], arena, start + 1, space - start - 1, secondStart, end - secondStart);
+                outValue.set(combined.count(entry));
+                context.write(outKey, outValue);
+            }
+            combined.clear();
+        }
+
+        ///
+        /// Builds type<lexeme>, type<word-label> or type<lexeme word-label> in the reused key buffer
+        /// and writes it, or adds it to the combined counts.
+        ///
+        private void writeKey(Context context, byte type, int token, int featToken) throws IOException, InterruptedException {
+            int len = 0;
+            int firstLength;
+            if (type == CountKey.TYPE_LF) {
+                ensureKeyCapacity(1 + parser.stemLength(token) + 1 + parser.featureLength(featToken));
+                keyBuffer[len++] = type;
+                len = parser.copyStem(token, keyBuffer, len);
+                firstLength = len - 1;
+                keyBuffer[len++] = ' ';
+                len = parser.copyFeature(featToken, keyBuffer, len);
+            } else if (type == CountKey.TYPE_L) {
+                ensureKeyCapacity(1 + parser.stemLength(token));
+                keyBuffer[len++] = type;
+                len = parser.copyStem(token, keyBuffer, len);
+                firstLength = len - 1;
+            } else {
+                ensureKeyCapacity(1 + parser.featureLength(token));
+                keyBuffer[len++] = type;
+                len = parser.copyFeature(token, keyBuffer, len);
+                firstLength = len - 1;
+            }
+            if (combined != null) {
+                combined.add(keyBuffer, 0, len, parser.totalCount);
                 return;
             }
+            int secondStart = Math.min(2 + firstLength, len);
+            outKey.set(type, keyBuffer, 1, firstLength, secondStart, len - secondStart);
+            context.write(outKey, outValue);
+        }
+
+        private void ensureKeyCapacity(int size) {
+            if (keyBuffer.length < size) {
+                keyBuffer = new byte[Math.max(size, keyBuffer.length * 2)];
+            }
+        }
+    }
+
+    ///
+    /// Single pass parser over the raw UTF-8 bytes of a biarcs line:
+    ///     head_word<TAB>w1/POS/label/pointer w2/POS/label/pointer ...<TAB>total_count<TAB>counts_by_year
+    ///
+    /// Tokens are located by offset only, total_count is parsed directly as a long.
+    /// Stemmed words are written into one shared buffer per line.
+    ///
+    public static class NgramParser {
+        private final StemCache stemCache;
+
+        public int numTokens;
+        public long totalCount;
+
+        public int[] wordStart = new int[16];
+        public int[] wordEnd = new int[16];
+        public int[] labelStart = new int[16];
+        public int[] labelEnd = new int[16];
+        public int[] pointer = new int[16];
+
+        // Stemmed words of the current line, token i is stems[stemStart[i], stemEnd[i])
+        private byte[] stems = new byte[256];
+        private int[] stemStart = new int[16];
+        private int[] stemEnd = new int[16];
+        private int stemsLength;
+
+        private byte[] bytes;
+
+        public NgramParser(StemCache stemCache) {
+            this.stemCache = stemCache;
+        }
+
+        ///
+        /// Returns false if the line doesn't have the expected format.
+        /// A token that is not exactly word/POS/label/pointer gets pointer -1.
+        ///
+        public boolean parse(Text line) {
+            bytes = line.getBytes();
+            int length = line.getLength();
+
+            int tab1 = indexOf(bytes, (byte) '\t', 0, length);
+            int tab2 = tab1 < 0 ? -1 : indexOf(bytes, (byte) '\t', tab1 + 1, length);
+            int tab3 = tab2 < 0 ? -1 : indexOf(bytes, (byte) '\t', tab2 + 1, length);
+            if (tab3 < 0) { // head_word<TAB>syntactic-ngram<TAB>total_count<TAB>counts_by_year
+                return false;
+            }
 
-            String count = fields[2];
-            String[] words = fields[1].split(" ");
+            int countStart = tab2 + 1;
+            int countEnd = tab3;
+            if (countStart == countEnd) {
+                return false;
+            }
+            long count = 0;
+            for (int p = countStart; p < countEnd; p++) {
+                int digit = bytes[p] - '0';
+                if (digit < 0 || digit > 9) {
+                    return false;
+                }
+                count = count * 10 + digit;
+            }
+            totalCount = count;
 
-            String[][] parts = new String[words.length][4];
-            // Replace each word with it's stemmed version
-            for (int i = 0; i < words.length; i++) {
-                String word = words[i];
-                String oldWord = word.substring(0, word.indexOf("/"));
-                String newWord = Stemmer.stemWord(oldWord);
-                words[i] = word.replace(oldWord, newWord);
-                parts[i] = words[i].split("/");
+            numTokens = 0;
+            stemsLength = 0;
+            int tokenStart = tab1 + 1;
+            for (int p = tokenStart; p <= tab2; p++) {
+                if (p == tab2 || bytes[p] == ' ') {
+                    parseToken(tokenStart, p);
+                    tokenStart = p + 1;
+                }
             }
+            return true;
+        }
 
-            for (String[] word : parts) {
-                try {
+        private void parseToken(int start, int end) {
+            int t = numTokens++;
+            if (t == pointer.length) {
+                grow();
+            }
 
-                    if (word.length != 4) { // Unknown format
-                        continue;
-                    }
+            // Locate the '/' separators of word/POS/label/pointer
+            int s1 = -1, s2 = -1, s3 = -1;
+            int slashes = 0;
+            for (int p = start; p < end; p++) {
+                if (bytes[p] == '/') {
+                    slashes++;
+                    if (slashes == 1) s1 = p;
+                    else if (slashes == 2) s2 = p;
+                    else if (slashes == 3) s3 = p;
+                }
+            }
 
-                    int pointer = Integer.parseInt(word[3]); // e.g. for/IN/prep/1
-                    if (pointer == 0) {
-                        continue;
-                    }
+            wordStart[t] = start;
+            wordEnd[t] = s1 < 0 ? end : s1;
+            stem(t);
 
-                    // Count lexeme
-                    String lex = parts[pointer - 1][0];
-                    context.write(new Text(String.format("l %s", lex)), new Text(count));
+            pointer[t] = -1;
+            if (slashes != 3 || s3 + 1 == end) { // Unknown format
+                return;
+            }
+            labelStart[t] = s2 + 1;
+            labelEnd[t] = s3;
+
+            int value = 0;
+            for (int p = s3 + 1; p < end; p++) {
+                int digit = bytes[p] - '0';
+                if (digit < 0 || digit > 9 || value > 100000) {
+                    return;
+                }
+                value = value * 10 + digit;
+            }
+            pointer[t] = value;
+        }
+
+        private void stem(int t) {
+            byte[] encoded = stemCache.stem(bytes, wordStart[t], wordEnd[t]);
+            if (stemsLength + encoded.length > stems.length) {
+                stems = Arrays.copyOf(stems, Math.max(stems.length * 2, stemsLength + encoded.length));
+            }
+            System.arraycopy(encoded, 0, stems, stemsLength, encoded.length);
+            stemStart[t] = stemsLength;
+            stemsLength += encoded.length;
+            stemEnd[t] = stemsLength;
+        }
 
-                    // Count feature
-                    String feat = word[0] + "-" + word[2];
-                    context.write(new Text(String.format("f %s", feat)), new Text(count));
+        public int stemLength(int t) {
+            return stemEnd[t] - stemStart[t];
+        }
 
-                    // Count lexeme feature pair
-                    context.write(new Text(String.format("lf %s %s", lex, feat)), new Text(count));
+        /** Length of "stemmed_word-dep_label" for token t. */
+        public int featureLength(int t) {
+            return stemLength(t) + 1 + labelEnd[t] - labelStart[t];
+        }
 
-                    // Add to the total count of features and lexemes
-                    context.getCounter("TotalCounters", "L").increment(Integer.parseInt(count));
-                    context.getCounter("TotalCounters", "F").increment(Integer.parseInt(count));
+        /** True if the stem of token t is a key of words. */
+        public boolean stemIn(int t, ByteCountMap words) {
+            return words.contains(stems, stemStart[t], stemLength(t));
+        }
+
+        public int copyStem(int t, byte[] dest, int offset) {
+            int len = stemLength(t);
+            System.arraycopy(stems, stemStart[t], dest, offset, len);
+            return offset + len;
+        }
+
+        public int copyFeature(int t, byte[] dest, int offset) {
+            offset = copyStem(t, dest, offset);
+            dest[offset++] = '-';
+            int len = labelEnd[t] - labelStart[t];
+            System.arraycopy(bytes, labelStart[t], dest, offset, len);
+            return offset + len;
+        }
+
+        private void grow() {
+            int size = pointer.length * 2;
+            wordStart = Arrays.copyOf(wordStart, size);
+            wordEnd = Arrays.copyOf(wordEnd, size);
+            labelStart = Arrays.copyOf(labelStart, size);
+            labelEnd = Arrays.copyOf(labelEnd, size);
+            pointer = Arrays.copyOf(pointer, size);
+            stemStart = Arrays.copyOf(stemStart, size);
+            stemEnd = Arrays.copyOf(stemEnd, size);
+        }
 
-                } catch (Exception e) {
-                    System.err.println("[ERROR]\n" + e.getMessage());
+        private static int indexOf(byte[] bytes, byte b, int from, int to) {
+            for (int p = from; p < to; p++) {
+                if (bytes[p] == b) {
+                    return p;
                 }
             }
+            return -1;
         }
     }
 
     ///
-    /// input: <key, value> key = l lexeme or f feature or lf lexeme feature,
+    /// input: <key, value> key = CountKey(l, lexeme) or CountKey(f, feature) or CountKey(lf, lexeme, feature),
     ///                     value = count
     ///
-    /// output: <key, value> key = l lexeme or f feature or lf lexeme feature,
+    /// output: <key, value> key = CountKey(l, lexeme) or CountKey(f, feature) or CountKey(lf, lexeme, feature),
     ///                      value = acc
     ///
-    public static class ReducerClass extends Reducer<Text, Text, Text, Text> {
+    public static class ReducerClass extends Reducer<CountKey, VLongWritable, CountKey, VLongWritable> {
+        private final VLongWritable result = new VLongWritable();
 
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            int acc = 0;
+        public void reduce(CountKey key, Iterable<VLongWritable> values, Context context) throws IOException, InterruptedException {
+            long acc = 0;
 
-            for (Text value : values) {
-                acc += Integer.parseInt(value.toString());
+            for (VLongWritable value : values) {
+                acc += value.get();
             }
-            context.write(key, new Text(String.format("%d", acc)));
+            result.set(acc);
+            context.write(key, result);
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        System.out.println("[DEBUG] STEP 1 started!");
-
-        String jarBucketName = args[1];
-        String inputPath = args[2];
-        String outputPath = args[3];
-
-        Configuration conf = new Configuration();
+    public static Job createJob(Configuration conf, String inputPath, String outputPath) throws IOException {
         Job job = Job.getInstance(conf, "Step1");
 
         job.setJarByClass(Step1.class);
@@ -115,39 +403,72 @@ public class Step1 {
         job.setReducerClass(ReducerClass.class);
         job.setCombinerClass(ReducerClass.class);
 
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        job.setOutputKeyClass(CountKey.class);
+        job.setOutputValueClass(VLongWritable.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
 
-        job.setInputFormatClass(TextInputFormat.class);
+        if (conf.get(INPUT_KEY, "text").equals("sequence")) {
+            // Same <lineID, line> records, but splittable, so the number of map tasks follows the input size
+            job.setInputFormatClass(SequenceFileInputFormat.class);
+            long splitSize = conf.getLong(SPLIT_SIZE_KEY, DEFAULT_SPLIT_SIZE);
+            FileInputFormat.setMinInputSplitSize(job, splitSize);
+            FileInputFormat.setMaxInputSplitSize(job, splitSize);
+        } else {
+            job.setInputFormatClass(TextInputFormat.class);
+        }
+        if (conf.getBoolean(GoldStandard.PRUNE_KEY, false)) {
+            GoldStandard.addToCache(job, conf.get(GoldStandard.PATH_KEY));
+        }
 
         FileInputFormat.addInputPath(job, new Path(inputPath));
 
         FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    ///
+    /// Write down Totals values to use in the next step
+    ///
+    public static void writeTotals(Job job, String countersOutput) throws IOException {
+        System.out.println("[DEBUG] Counter output path: " + countersOutput);
+        // Open file
+        FileSystem fs = FileSystem.get(URI.create(countersOutput), new Configuration());
+
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(fs.create(new Path(countersOutput), true)))) {
+            // Write each counter
+            for (Counter c : job.getCounters().getGroup("TotalCounters")) {
+                String name = c.getName();
+                long value = c.getValue();
+                String line = String.format("%s %d\n", name, value);
+                System.out.println("[DEBUG] Writing counter: " + line);
+                writer.write(line);
+            }
+            writer.flush();
+        }
+        System.out.println("[DEBUG] Finished writing counters");
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] STEP 1 started!");
+
+        String jarBucketName = args[1];
+        String inputPath = args[2];
+        String outputPath = args[3];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 4);
+        Job job = createJob(conf, inputPath, outputPath);
 
         boolean success = job.waitForCompletion(true);
 
-        // Write down Totals values to use in the next step
         if (success) {
+            System.out.println("[INFO] Map tasks: " + job.getCounters().findCounter(JobCounter.TOTAL_LAUNCHED_MAPS).getValue());
+            ReducerPlanner.writeStats(job);
             System.out.println("[DEBUG] Job completed successfully, writing counters...");
-            String countersOutput = "s3a://" + jarBucketName + "/counters";
-            System.out.println("[DEBUG] Counter output path: " + countersOutput);
-            // Open file
-            FileSystem fs = FileSystem.get(URI.create(countersOutput), new Configuration());
-
-            try (BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(fs.create(new Path(countersOutput), true)))) {
-                // Write each counter
-                for (Counter c : job.getCounters().getGroup("TotalCounters")) {
-                    String name = c.getName();
-                    long value = c.getValue();
-                    String line = String.format("%s %d\n", name, value);
-                    System.out.println("[DEBUG] Writing counter: " + line);
-                    writer.write(line);
-                }
-                writer.flush();
-            }
-            System.out.println("[DEBUG] Finished writing counters");
+            writeTotals(job, PipelineOptions.countersPath(conf, jarBucketName));
         }
         System.exit(success ? 0 : 1);
     }
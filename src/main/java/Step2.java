@@ -1,124 +1,442 @@
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Step2 {
     ///
-    /// input: <key, value>:  key = lineID
-    ///                       value = l word    count
-    ///                       or value = f feature_word-dep_label   count
-    ///                       or value = lf word feature_word-dep_label   count
+    /// input: <key, value>:  key = CountKey(l, word),                value = count
+    ///                       or key = CountKey(f, feature_word-dep_label), value = count
+    ///                       or key = CountKey(lf, word, feature_word-dep_label), value = count
     ///
-    /// output: <key, value>:  key = word lf , value = lf word feature count
-    ///                        or key = feature lf , value = lf word feature count
-    ///                        or key = word l, value = l count
-    ///                        or key = word f, value = f count
+    /// output: <key, value>:  key = JoinKey(word, lexeme, pair) , value = lf word feature count
+    ///                        or key = JoinKey(feature, feature, pair) , value = lf word feature count
+    ///                        or key = JoinKey(word, lexeme, marginal), value = l count
+    ///                        or key = JoinKey(feature, feature, marginal), value = f count
     ///
-    public static class MapperClass extends Mapper<LongWritable, Text, Text, Text> {
+    /// With a skew plan (see SkewPlan) the marginal count of a heavy word is written once for every reducer
+    /// its pairs are spread over.
+    ///
+    public static class MapperClass extends Mapper<CountKey, VLongWritable, JoinKey, CountRecord> {
+        private final JoinKey outKey = new JoinKey();
+        private final CountRecord outValue = new CountRecord();
+
+        // Number of reducers of the heavy words, null without a skew plan
+        private Map<Text, Integer> heavyLexemes;
+        private Map<Text, Integer> heavyFeatures;
+        private Counter replicated;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            SkewPlan plan = SkewPlan.openCached(conf);
+            if (plan != null) {
+                double fraction = conf.getDouble(SkewPlan.FRACTION_KEY, SkewPlan.DEFAULT_FRACTION);
+                heavyLexemes = plan.heavy(JoinKey.SIDE_LEXEME, context.getNumReduceTasks(), fraction);
+                heavyFeatures = plan.heavy(JoinKey.SIDE_FEATURE, context.getNumReduceTasks(), fraction);
+                replicated = context.getCounter("Skew", "REPLICATED_MARGINALS");
+            }
+        }
 
         @Override
-        public void map(LongWritable lineId, Text line, Context context) throws IOException, InterruptedException {
-            String[] fields = line.toString().split("\\s+");
-            if (fields.length < 3) {
-                return;
-            }
-            String type = fields[0];
-            if (fields[0].equals("lf") && fields.length > 3) {
-                context.write(new Text(String.format("%s %s", fields[1], type)), // word (lexeme) | type lf
-                        new Text(String.format("lf %s %s %s", fields[1], fields[2], fields[3]))); // word (lexeme) | feature | count
-
-                context.write(new Text(String.format("%s %s", fields[2], type)), // feature | type lf
-                        new Text(String.format("lf %s %s %s", fields[1], fields[2], fields[3]))); // word (lexeme) | feature | count
+        public void map(CountKey key, VLongWritable count, Context context) throws IOException, InterruptedException {
+            if (key.getType() == CountKey.TYPE_LF) {
+                outValue.setPair(key.getFirst(), key.getSecond(), count.get()); // word (lexeme) | feature | count
+
+                outKey.set(key.getFirst(), JoinKey.SIDE_LEXEME, JoinKey.TAG_PAIR);
+                context.write(outKey, outValue);
+
+                outKey.set(key.getSecond(), JoinKey.SIDE_FEATURE, JoinKey.TAG_PAIR);
+                context.write(outKey, outValue);
             } else {
-                context.write(new Text(String.format("%s %s", fields[1], type)), // word (lexeme) | type l or f
-                        new Text(String.format("%s %s", type, fields[2]))); // type | count
+                byte side = key.getType() == CountKey.TYPE_L ? JoinKey.SIDE_LEXEME : JoinKey.SIDE_FEATURE;
+                outKey.set(key.getFirst(), side, JoinKey.TAG_MARGINAL);
+                Integer salts = heavyLexemes == null ? null
+                        : (side == JoinKey.SIDE_LEXEME ? heavyLexemes : heavyFeatures).get(key.getFirst());
+                for (int replica = 0; replica < (salts == null ? 1 : salts); replica++) {
+                    outValue.setMarginal(key.getType(), count.get(), replica); // type | count
+                    context.write(outKey, outValue);
+                }
+                if (salts != null) {
+                    replicated.increment(salts - 1);
+                }
             }
         }
     }
 
 
     ///
-    /// input: <key, value>:  key = word lf , value = lf word feature count
-    ///                        or key = feature lf , value = lf word feature count
-    ///                        or key = word l, value = l count
-    ///                        or key = word f, value = f count
+    /// input: <key, value>:  key = JoinKey(word, side), values = the marginal count of the word first, then its pairs
+    ///                       (sorted by JoinKey, grouped by JoinKey.GroupingComparator)
     ///
-    /// output: <key, value>: key = word feature,
+    /// output: <key, value>: key = LexemeFeatureKey(word, feature),
     ///                       value = lf=count f=keywordCount
     ///                       or value = lf=count l=keywordCount
     ///
-    public static class ReducerClass extends Reducer<Text, Text, Text, Text> {
-        public String keywordType = null;
-        public String keywordCount = null;
+    public static class ReducerClass extends Reducer<JoinKey, CountRecord, LexemeFeatureKey, MarginalCount> {
+        private final LexemeFeatureKey outKey = new LexemeFeatureKey();
+        private final MarginalCount outValue = new MarginalCount();
+
+        @Override
+        public void reduce(JoinKey key, Iterable<CountRecord> values, Context context) throws IOException, InterruptedException {
+            byte keywordType = MarginalCount.TYPE_NONE;
+            long keywordCount = 0;
+
+            for (CountRecord value : values) {
+                if (value.getType() == CountKey.TYPE_L || value.getType() == CountKey.TYPE_F) {
+                    keywordType = value.getType();
+                    keywordCount = value.getCount();
+                } else {
+                    if (keywordType == MarginalCount.TYPE_NONE) {
+                        context.getCounter("Join", "MISSING_MARGINAL").increment(1);
+                    }
+                    outKey.set(value.getLexeme(), value.getFeature());
+                    outValue.set(value.getCount(), keywordType, keywordCount);
+                    context.write(outKey, outValue);
+                }
+            }
+        }
+    }
+
+    ///
+    /// Partition by the word and its side. The pairs of a heavy word of the skew plan go to one of its reducers,
+    /// picked by the other word of the pair, and each copy of its marginal to another one.
+    ///
+    public static class PartitionerClass extends Partitioner<JoinKey, CountRecord> implements Configurable {
+        private Configuration conf;
+        private SkewPlan plan;
+        private Map<Text, Integer> heavyLexemes;
+        private Map<Text, Integer> heavyFeatures;
+
+        @Override
+        public void setConf(Configuration conf) {
+            this.conf = conf;
+            try {
+                plan = SkewPlan.openCached(conf);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read the skew plan", e);
+            }
+        }
+
+        @Override
+        public Configuration getConf() {
+            return conf;
+        }
+
+        @Override
+        public int getPartition(JoinKey key, CountRecord value, int numPartitions) {
+            int partition = ((key.getWord().hashCode() * 31 + key.getSide()) & Integer.MAX_VALUE) % numPartitions;
+            if (plan == null) {
+                return partition;
+            }
+            if (heavyLexemes == null) {
+                double fraction = conf.getDouble(SkewPlan.FRACTION_KEY, SkewPlan.DEFAULT_FRACTION);
+                heavyLexemes = plan.heavy(JoinKey.SIDE_LEXEME, numPartitions, fraction);
+                heavyFeatures = plan.heavy(JoinKey.SIDE_FEATURE, numPartitions, fraction);
+            }
+
+            boolean lexemeSide = key.getSide() == JoinKey.SIDE_LEXEME;
+            Integer salts = (lexemeSide ? heavyLexemes : heavyFeatures).get(key.getWord());
+            if (salts == null) {
+                return partition;
+            }
+            int salt = value.getType() == CountKey.TYPE_LF
+                    ? ((lexemeSide ? value.getFeature() : value.getLexeme()).hashCode() & Integer.MAX_VALUE) % salts
+                    : value.getReplica();
+            return SkewPlan.partition(partition, salt, numPartitions);
+        }
+    }
+
+    ///
+    /// Dictionary encoded mode (pipeline.ids=true), same join on ids:
+    ///
+    /// input: <key, value>:  key = CountKey(l, word) or CountKey(f, feature) or CountKey(lf, word, feature),
+    ///                       value = count
+    ///
+    /// output: <key, value>:  key = id << 2 | side << 1 | 1,  value = PairCount(pair, count)   side 0 = lexeme, 1 = feature
+    ///                        or key = id << 2 | side << 1,  value = PairCount(-, count)
+    ///
+    /// The marginal count of a heavy word of the skew plan is written once for each of its reducers.
+    ///
+    public static class IdMapperClass extends Mapper<CountKey, VLongWritable, LongWritable, PairCount> {
+        public static final int SIDE_LEXEME = 0;
+        public static final int SIDE_FEATURE = 1;
+
+        private WordTable lexemes;
+        private WordTable features;
+
+        private final LongWritable outKey = new LongWritable();
+        private final PairCount outValue = new PairCount();
+
+        // Number of reducers of the heavy words by id << 1 | side, null without a skew plan
+        private Map<Long, Integer> heavy;
+        private Counter replicated;
 
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+        protected void setup(Context context) throws IOException, InterruptedException {
+            lexemes = DictionaryStep.openCached(DictionaryStep.LEXEMES);
+            features = DictionaryStep.openCached(DictionaryStep.FEATURES);
 
-            for (Text value : values) {
-                String[] fields = value.toString().split(" ");
+            SkewPlan plan = SkewPlan.openCached(context.getConfiguration());
+            if (plan != null) {
+                heavy = heavyIds(plan, lexemes, features, context.getNumReduceTasks(), context.getConfiguration());
+                replicated = context.getCounter("Skew", "REPLICATED_MARGINALS");
+            }
+        }
 
-                if (fields.length < 2) {
-                    continue;
+        @Override
+        public void map(CountKey key, VLongWritable count, Context context) throws IOException, InterruptedException {
+            Text first = key.getFirst();
+            if (key.getType() == CountKey.TYPE_LF) {
+                int lexemeId = lexemes.find(first.getBytes(), 0, first.getLength());
+                Text second = key.getSecond();
+                int featureId = features.find(second.getBytes(), 0, second.getLength());
+                if (lexemeId < 0 || featureId < 0) {
+                    context.getCounter("Dictionary", "MISSING").increment(1);
+                    return;
+                }
+                outValue.set(PairCount.pack(lexemeId, featureId), count.get());
+
+                outKey.set(joinKey(lexemeId, SIDE_LEXEME, 1));
+                context.write(outKey, outValue);
+
+                outKey.set(joinKey(featureId, SIDE_FEATURE, 1));
+                context.write(outKey, outValue);
+            } else {
+                boolean isLexeme = key.getType() == CountKey.TYPE_L;
+                int id = isLexeme ? lexemes.find(first.getBytes(), 0, first.getLength())
+                                  : features.find(first.getBytes(), 0, first.getLength());
+                if (id < 0) {
+                    context.getCounter("Dictionary", "MISSING").increment(1);
+                    return;
                 }
+                outKey.set(joinKey(id, isLexeme ? SIDE_LEXEME : SIDE_FEATURE, 0));
+                Integer salts = heavy == null ? null : heavy.get(outKey.get() >>> 1);
+                for (int replica = 0; replica < (salts == null ? 1 : salts); replica++) {
+                    outValue.setMarginal(count.get(), replica);
+                    context.write(outKey, outValue);
+                }
+                if (salts != null) {
+                    replicated.increment(salts - 1);
+                }
+            }
+        }
 
-                if (fields[0].equals("l") || fields[0].equals("f")) {
-                    keywordType = fields[0];
-                    keywordCount = fields[1];
-                } else if (fields.length > 2) {
-                    String k = String.format("%s %s", fields[1], fields[2]);
-                    String v = String.format("lf=%s %s=%s", fields[3], keywordType, keywordCount);
-                    context.write(new Text(k), new Text(v));
+        public static long joinKey(int id, int side, int lf) {
+            return ((long) id << 2) | (side << 1) | lf;
+        }
+
+        /**
+         * The heavy words of the plan with their number of reducers, by id << 1 | side.
+         */
+        public static Map<Long, Integer> heavyIds(SkewPlan plan, WordTable lexemes, WordTable features,
+                                                  int numPartitions, Configuration conf) {
+            double fraction = conf.getDouble(SkewPlan.FRACTION_KEY, SkewPlan.DEFAULT_FRACTION);
+            Map<Long, Integer> heavy = new HashMap<>();
+            for (int side = SIDE_LEXEME; side <= SIDE_FEATURE; side++) {
+                WordTable table = side == SIDE_LEXEME ? lexemes : features;
+                byte joinSide = side == SIDE_LEXEME ? JoinKey.SIDE_LEXEME : JoinKey.SIDE_FEATURE;
+                for (Map.Entry<Text, Integer> entry : plan.heavy(joinSide, numPartitions, fraction).entrySet()) {
+                    int id = table.find(entry.getKey().getBytes(), 0, entry.getKey().getLength());
+                    if (id >= 0) {
+                        heavy.put(joinKey(id, side, 0) >>> 1, entry.getValue());
+                    }
                 }
             }
+            return heavy;
         }
     }
 
     ///
-    /// Partition by the first word
+    /// input: <key, value>:  key = id << 2 | side << 1 | 1,  value = PairCount(pair, count)
+    ///                       or key = id << 2 | side << 1,  value = PairCount(-, count)
+    ///                       (grouped on id << 1 | side by IdGroupingComparator, the marginal first)
     ///
-    public static class PartitionerClass extends Partitioner<Text, Text> {
+    /// output: <key, value>: key = pair,
+    ///                       value = lf=count f=keywordCount
+    ///                       or value = lf=count l=keywordCount
+    ///
+    public static class IdReducerClass extends Reducer<LongWritable, PairCount, LongWritable, MarginalCount> {
+        private final LongWritable outKey = new LongWritable();
+        private final MarginalCount outValue = new MarginalCount();
 
         @Override
-        public int getPartition(Text key, Text value, int numPartitions) {
-            String w = key.toString().split(" ")[0];
-            return Math.abs(w.hashCode() % numPartitions);
+        public void reduce(LongWritable key, Iterable<PairCount> values, Context context) throws IOException, InterruptedException {
+            boolean isLexeme = ((key.get() >>> 1) & 1) == IdMapperClass.SIDE_LEXEME;
+            byte keywordType = MarginalCount.TYPE_NONE;
+            long keywordCount = 0;
+
+            for (PairCount value : values) {
+                if (value.isMarginal()) {
+                    keywordType = isLexeme ? CountKey.TYPE_L : CountKey.TYPE_F;
+                    keywordCount = value.getCount();
+                } else {
+                    if (keywordType == MarginalCount.TYPE_NONE) {
+                        context.getCounter("Join", "MISSING_MARGINAL").increment(1);
+                    }
+                    outKey.set(value.getPair());
+                    outValue.set(value.getCount(), keywordType, keywordCount);
+                    context.write(outKey, outValue);
+                }
+            }
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        System.out.println("[DEBUG] STEP 2 started!");
+    ///
+    /// Groups id << 2 | side << 1 | lf on id and side, the marginal (lf = 0) sorts first
+    ///
+    public static class IdGroupingComparator extends WritableComparator {
+        protected IdGroupingComparator() {
+            super(LongWritable.class);
+        }
 
-        String jarBucketName = args[1];
-        String inputPath = args[2];
-        String outputPath = args[3];
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Long.compare(readLong(b1, s1) >>> 1, readLong(b2, s2) >>> 1);
+        }
+    }
 
-        Configuration conf = new Configuration();
+    ///
+    /// Partition by id and side, the records of a heavy word of the skew plan are spread like in PartitionerClass
+    ///
+    public static class IdPartitionerClass extends Partitioner<LongWritable, PairCount> implements Configurable {
+        private Configuration conf;
+        private SkewPlan plan;
+        private Map<Long, Integer> heavy;
+
+        @Override
+        public void setConf(Configuration conf) {
+            this.conf = conf;
+            try {
+                plan = SkewPlan.openCached(conf);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read the skew plan", e);
+            }
+        }
+
+        @Override
+        public Configuration getConf() {
+            return conf;
+        }
+
+        @Override
+        public int getPartition(LongWritable key, PairCount value, int numPartitions) {
+            long word = key.get() >>> 1;
+            int partition = (Long.hashCode(word) & Integer.MAX_VALUE) % numPartitions;
+            if (plan == null) {
+                return partition;
+            }
+            if (heavy == null) {
+                try {
+                    heavy = IdMapperClass.heavyIds(plan, DictionaryStep.openCached(DictionaryStep.LEXEMES),
+                            DictionaryStep.openCached(DictionaryStep.FEATURES), numPartitions, conf);
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to open the dictionary", e);
+                }
+            }
+
+            Integer salts = heavy.get(word);
+            if (salts == null) {
+                return partition;
+            }
+            int salt;
+            if (value.isMarginal()) {
+                salt = value.getReplica();
+            } else {
+                boolean lexemeSide = (word & 1) == IdMapperClass.SIDE_LEXEME;
+                int other = lexemeSide ? PairCount.featureId(value.getPair()) : PairCount.lexemeId(value.getPair());
+                salt = (Integer.hashCode(other) & Integer.MAX_VALUE) % salts;
+            }
+            return SkewPlan.partition(partition, salt, numPartitions);
+        }
+    }
+
+    public static Job createJob(Configuration conf, String inputPath, String outputPath) throws IOException {
         Job job = Job.getInstance(conf, "Step2");
 
         job.setJarByClass(Step2.class);
-        job.setMapperClass(Step2.MapperClass.class);
-        job.setReducerClass(Step2.ReducerClass.class);
-        job.setPartitionerClass(Step2.PartitionerClass.class);
+        if (conf.getBoolean(DictionaryStep.IDS_KEY, false)) {
+            job.setMapperClass(Step2.IdMapperClass.class);
+            job.setReducerClass(Step2.IdReducerClass.class);
+            job.setPartitionerClass(Step2.IdPartitionerClass.class);
+            job.setGroupingComparatorClass(Step2.IdGroupingComparator.class);
+
+            job.setMapOutputKeyClass(LongWritable.class);
+            job.setMapOutputValueClass(PairCount.class);
+
+            job.setOutputKeyClass(LongWritable.class);
+            job.setOutputValueClass(MarginalCount.class);
 
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
+            DictionaryStep.addToCache(job, conf.get(DictionaryStep.DICTIONARY_KEY));
+        } else {
+            job.setMapperClass(Step2.MapperClass.class);
+            job.setReducerClass(Step2.ReducerClass.class);
+            job.setPartitionerClass(Step2.PartitionerClass.class);
+            job.setGroupingComparatorClass(JoinKey.GroupingComparator.class);
 
-        job.setInputFormatClass(TextInputFormat.class);
+            job.setMapOutputKeyClass(JoinKey.class);
+            job.setMapOutputValueClass(CountRecord.class);
 
-        FileInputFormat.addInputPath(job, new Path(inputPath + "part-r*"));
+            job.setOutputKeyClass(LexemeFeatureKey.class);
+            job.setOutputValueClass(MarginalCount.class);
+        }
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+
+        ReducerPlanner.apply(job, inputPath, 2); // every lf record is mapped twice
+        CombinedInput.addInputPath(job, new Path(inputPath + "part-r*"));
+        if (job.getConfiguration().getBoolean(SkewPlan.ENABLED_KEY, true) && job.getNumReduceTasks() > 1) {
+            Path planPath = SkewPlan.findOrCreate(job.getConfiguration(), inputPath);
+            logHeavyWords(SkewPlan.read(job.getConfiguration(), planPath), job);
+            SkewPlan.addToCache(job, planPath);
+        }
 
         FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    private static void logHeavyWords(SkewPlan plan, Job job) {
+        double fraction = job.getConfiguration().getDouble(SkewPlan.FRACTION_KEY, SkewPlan.DEFAULT_FRACTION);
+        int reducers = job.getNumReduceTasks();
+        List<String> heavy = new ArrayList<>();
+        for (byte side = JoinKey.SIDE_LEXEME; side <= JoinKey.SIDE_FEATURE; side++) {
+            String suffix = side == JoinKey.SIDE_LEXEME ? " (l) x" : " (f) x";
+            plan.heavy(side, reducers, fraction).forEach((word, salts) -> heavy.add(word + suffix + salts));
+        }
+        System.out.println("[INFO] Skew plan: " + heavy.size() + " heavy words over " + reducers + " reducers"
+                + (heavy.isEmpty() ? "" : ", e.g. " + heavy.subList(0, Math.min(10, heavy.size()))));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] STEP 2 started!");
+
+        String jarBucketName = args[1];
+        String inputPath = args[2];
+        String outputPath = args[3];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 4);
+        Job job = createJob(conf, inputPath, outputPath);
 
         boolean success = job.waitForCompletion(true);
+        if (success) {
+            CombinedInput.report(job);
+            ReducerPlanner.writeStats(job);
+        }
         System.exit(success ? 0 : 1);
     }
 }
@@ -1,12 +1,10 @@
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.fs.FileSystem;
 
 import java.io.*;
@@ -14,45 +12,37 @@ import java.net.URI;
 
 public class Step3 {
     ///
-    /// input: <key, value>: key = word feature,
-    ///                       value = word feature  lf=count f=keywordCount
-    ///                       or value = word feature   lf=count l=keywordCount
+    /// input: <key, value>: key = LexemeFeatureKey(word, feature) or the packed ids pair with pipeline.ids=true,
+    ///                       value = lf=count f=keywordCount
+    ///                       or value = lf=count l=keywordCount
     ///
-    /// output: <key, value>: key = word feature,
+    /// output: <key, value>: key = LexemeFeatureKey(word, feature) or the packed ids pair,
     ///                       value = lf=count f=keywordCount
     ///                       or value = lf=count l=keywordCount
     ///
-    public static class MapperClass extends Mapper<LongWritable, Text, Text, Text> {
+    public static class MapperClass<K> extends Mapper<K, MarginalCount, K, MarginalCount> {
 
         @Override
-        public void map(LongWritable lineId, Text line, Context context) throws IOException, InterruptedException {
-
-            String[] fields = line.toString().split("\\s+");
-            if (fields.length != 4) {
-                return;
-            }
-            String w1 = fields[0];
-            String w2 = fields[1];
-            String lf = fields[2]; // lf=%s
-            String f_or_l = fields[3]; // l=%s or f=%s
-
-            context.write(new Text(String.format("%s %s", w1, w2)), new Text(String.format("%s %s", lf, f_or_l)));
+        public void map(K key, MarginalCount value, Context context) throws IOException, InterruptedException {
+            context.write(key, value);
         }
 
     }
 
     ///
-    /// input: <key, value>: key = word feature,
+    /// input: <key, value>: key = LexemeFeatureKey(word, feature) or the packed ids pair,
     ///                      value = lf=count f=keywordCount
     ///                      or value = lf=count l=keywordCount
     ///
-    /// output: <key, value>: key = word feature,
-    ///                       value = assoc_freq=_ assoc_prob=_ assoc_PMI=_ assoc_t_test=_
+    /// output: <key, value>: key = LexemeFeatureKey(word, feature) or the packed ids pair,
+    ///                       value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
     ///
-    public static class ReducerClass extends Reducer<Text, Text, Text, Text> {
+    public static class ReducerClass<K> extends Reducer<K, MarginalCount, K, AssocVector> {
         public double L;
         public double F;
 
+        private final AssocVector outValue = new AssocVector();
+
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
             L = Double.parseDouble(context.getConfiguration().get("L"));
@@ -60,61 +50,62 @@ public class Step3 {
         }
 
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+        public void reduce(K key, Iterable<MarginalCount> values, Context context) throws IOException, InterruptedException {
             double l = 0;
             double f = 0;
             double lf = 0;
 
-            for (Text value : values) {
-                String[] fields = value.toString().split(" ");
-                if (fields.length != 2) {
-                    return;
-                }
-                lf = Double.parseDouble(fields[0].split("=")[1]);
-                String[] l_or_f = fields[1].split("=");
-                if (l_or_f[0].equals("l")) {
-                    l = Double.parseDouble(l_or_f[1]);
-                } else if (l_or_f[0].equals("f")) {
-                    f = Double.parseDouble(l_or_f[1]);
+            for (MarginalCount value : values) {
+                lf = value.getLf();
+                if (value.getType() == CountKey.TYPE_L) {
+                    l = value.getCount();
+                } else if (value.getType() == CountKey.TYPE_F) {
+                    f = value.getCount();
                 }
 
             }
 
-            if (l != 0 && f != 0 && lf != 0) {
-                // Vector assoc_freq (5)
-                double assoc_freq = lf;
-
-                // Vector assoc_prob (6)
-                double assoc_prob = lf / l;
-
-                // Vector assoc_PMI (7)
-                double assoc_PMI = (F * lf) / (l * f);
-
-                // Vector assoc_t_test (8)
-                double assoc_t_test = ((lf / L) - ((l / L ) * (f / F))) / (Math.sqrt((l / L) * (f / F)));
-
-                context.write(key,
-                        new Text(String.format("assoc_freq=%s assoc_prob=%s assoc_PMI=%s assoc_t_test=%s",
-                                assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)));
+            if (measures(lf, l, f, L, F, outValue)) {
+                context.write(key, outValue);
             } else {
                 System.err.println(String.format("Error! l=%s f=%s lf=%s", l, f, lf));
             }
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        System.out.println("[DEBUG] STEP 3 started!");
+    /**
+     * Association measures of one lexeme feature pair, shared with MarginalJoinStep.
+     * Returns false (and leaves out untouched) if one of the counts is missing.
+     */
+    public static boolean measures(double lf, double l, double f, double L, double F, AssocVector out) {
+        if (l == 0 || f == 0 || lf == 0) {
+            return false;
+        }
+        // Vector assoc_freq (5)
+        double assoc_freq = lf;
 
-        String jarBucketName = args[1];
-        String inputPath = args[2];
-        String outputPath = args[3];
+        // Vector assoc_prob (6)
+        double assoc_prob = lf / l;
+
+        // Vector assoc_PMI (7)
+        double assoc_PMI = (F * lf) / (l * f);
+
+        // Vector assoc_t_test (8)
+        double assoc_t_test = ((lf / L) - ((l / L ) * (f / F))) / (Math.sqrt((l / L) * (f / F)));
 
-        String s3InputPath = "s3a://" + jarBucketName + "/counters";
-        FileSystem fs = FileSystem.get(URI.create(s3InputPath), new Configuration());
+        out.set(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test);
+        return true;
+    }
+
+    /**
+     * Read the L and F totals written by Step1 into conf.
+     */
+    public static void loadTotals(Configuration conf, String countersPath) throws IOException {
+        FileSystem fs = FileSystem.get(URI.create(countersPath), new Configuration());
         String L = null;
         String F = null;
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(s3InputPath))))) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(countersPath))))) {
             // Read the first line only
             String line = reader.readLine();
             while (line != null) {
@@ -133,27 +124,52 @@ public class Step3 {
         if (L == null || F == null) {
             throw new RuntimeException("Total counters haven't been found!");
         }
-
-        Configuration conf = new Configuration();
         conf.set("L", L);
         conf.set("F", F);
+    }
 
+    public static Job createJob(Configuration conf, String inputPath, String outputPath) throws IOException {
         Job job = Job.getInstance(conf, "Step3");
 
         job.setJarByClass(Step3.class);
         job.setMapperClass(Step3.MapperClass.class);
         job.setReducerClass(Step3.ReducerClass.class);
 
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        Class<?> keyClass = conf.getBoolean(DictionaryStep.IDS_KEY, false) ? LongWritable.class : LexemeFeatureKey.class;
+        job.setOutputKeyClass(keyClass);
+        job.setOutputValueClass(AssocVector.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
 
-        job.setInputFormatClass(TextInputFormat.class);
-        FileInputFormat.addInputPath(job, new Path(inputPath + "part-r*"));
+        job.setMapOutputKeyClass(keyClass);
+        job.setMapOutputValueClass(MarginalCount.class);
+
+        ReducerPlanner.apply(job, inputPath, 1);
+        CombinedInput.addInputPath(job, new Path(inputPath + "part-r*"));
 
         FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] STEP 3 started!");
+
+        String jarBucketName = args[1];
+        String inputPath = args[2];
+        String outputPath = args[3];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 4);
+        loadTotals(conf, PipelineOptions.countersPath(conf, jarBucketName));
+
+        Job job = createJob(conf, inputPath, outputPath);
 
         boolean success = job.waitForCompletion(true);
+        if (success) {
+            CombinedInput.report(job);
+            ReducerPlanner.writeStats(job);
+        }
         System.exit(success ? 0 : 1);
     }
 }
@@ -1,48 +1,72 @@
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
-import org.apache.hadoop.fs.FileSystem;
 
 import java.io.*;
-import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 
 public class Step4 {
+    /** Number of feature ranges the features of a gold pair are split into, 1 for a single reduce per pair */
+    public static final String SALTS_KEY = "step4.salts";
+    /** The first feature of every range but the first, space separated, set by createPartialJob */
+    public static final String BOUNDARIES_KEY = "step4.salt.boundaries";
+    /** Step3 records sampled by the driver, for the salt ranges and the planner */
+    public static final String SAMPLE_SIZE_KEY = "step4.sampleSize";
 
+    public static final int DEFAULT_SAMPLE_SIZE = 100_000;
+
+    ///
+    /// Sorted by original key, feature and then the side of the pair (w1 before w2).
+    /// Grouped by the original key only.
+    ///
     public static class CompositeKey implements WritableComparable<CompositeKey> {
-        private String originalKey;
-        private String feature;
-        private String isRelated;
+        private final Text originalKey = new Text();
+        private final Text feature = new Text();
+        private final Text isRelated = new Text();
+        private boolean left;
 
         public CompositeKey() {
         }
 
-        public CompositeKey(String originalKey, String feature, String isRelated) {
-            this.originalKey = originalKey;
-            this.feature = feature;
-            this.isRelated = isRelated;
+        public CompositeKey(String originalKey, String feature, String isRelated, boolean left) {
+            this.originalKey.set(originalKey);
+            this.feature.set(feature);
+            this.isRelated.set(isRelated);
+            this.left = left;
+        }
+
+        public void set(Text originalKey, Text feature, Text isRelated, boolean left) {
+            this.originalKey.set(originalKey);
+            this.feature.set(feature);
+            this.isRelated.set(isRelated);
+            this.left = left;
         }
 
         @Override
         public void write(DataOutput out) throws IOException {
-            out.writeUTF(originalKey);
-            out.writeUTF(feature);
-            out.writeUTF(isRelated);
+            originalKey.write(out);
+            feature.write(out);
+            out.writeBoolean(left);
+            isRelated.write(out);
         }
 
         @Override
         public void readFields(DataInput in) throws IOException {
-            originalKey = in.readUTF();
-            feature = in.readUTF();
-            isRelated = in.readUTF();
+            originalKey.readFields(in);
+            feature.readFields(in);
+            left = in.readBoolean();
+            isRelated.readFields(in);
         }
 
         @Override
@@ -51,153 +75,172 @@ public class Step4 {
             if (cmp != 0) {
                 return cmp;
             }
-            return this.feature.compareTo(other.feature);
+            cmp = this.feature.compareTo(other.feature);
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Boolean.compare(other.left, this.left);
         }
 
-        public String getOriginalKey() {
+        public Text getOriginalKey() {
             return originalKey;
         }
 
-        public String getFeature() {
+        public Text getFeature() {
             return feature;
         }
 
-        public String getIsRelated() {
+        public Text getIsRelated() {
             return isRelated;
         }
+
+        /** True if the lexeme of this record is w1 of the pair. */
+        public boolean isLeft() {
+            return left;
+        }
     }
 
     ///
-    /// input: <key, value>: key = lineID ,
-    ///                       value = word feature  assoc_freq=_ assoc_prob=_ assoc_PMI=_ assoc_t_test=_
+    /// input: <key, value>: key = LexemeFeatureKey(word, feature) or the packed ids pair with pipeline.ids=true,
+    ///                       value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
     ///
-    /// output: <key, value>: key = new CompositeKey("w1 w2", feature, isRelated)
-    ///                       or key = new CompositeKey("w2 w1", feature, isRelated)
-    ///                       value = feature lexeme assoc_freq=_ assoc_prob=_ assoc_PMI=_ assoc_t_test=_
+    /// output: <key, value>: key = CompositeKey("w1 w2", feature, isRelated, word is w1),
+    ///                       or CompositeKey("w1 w2 salt", ...) with step4.salts > 1
+    ///                       value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
     ///
-    public static class MapperClass extends Mapper<LongWritable, Text, CompositeKey, Text> {
+    public static class MapperClass<K> extends Mapper<K, AssocVector, CompositeKey, AssocVector> {
+        private final CompositeKey outKey = new CompositeKey();
+
+        private GoldStandardIndex gold;
+
+        // With pipeline.ids=true: lexeme id -> gold word
+        private GoldStandardIndex.IdLookup goldIds;
 
-        public LinkedHashMap<String, HashSet<String>> GoldenStandard = new LinkedHashMap<>();
+        private final Text featureId = new Text();
+        private final byte[] featureIdBytes = new byte[4];
 
+        // With step4.salts > 1: " <salt>" for every salt, and what picks the salt of a feature
+        private byte[][] saltSuffixes;
+        private int features;
+        private Text[] boundaries;
+        private final Text saltedKey = new Text();
 
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
 
             Configuration conf = context.getConfiguration();
-            String s3InputPath = conf.get("goldStandardPath");
 
-            FileSystem fs = FileSystem.get(URI.create(s3InputPath), new Configuration());
-
-            // Read the file
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(s3InputPath))))) {
-                String line;
-
-                while ((line = reader.readLine()) != null) {
-                    // Split the line into parts
-                    String[] parts = line.split("\\s+");
-
-                    // Skip malformed lines
-                    if (parts.length != 3) {
-                        continue;
-                    }
-
-                    String word1 = parts[0];
-                    String word2 = parts[1];
-                    String isRelated = parts[2];
+            try (BufferedReader reader = GoldStandard.open(conf, conf.get(GoldStandard.PATH_KEY))) {
+                gold = GoldStandardIndex.read(reader);
+            }
+            System.out.println("[DEBUG] Gold standard words: " + gold.size());
 
-                    // Stemming
-                    String word1Stemmed = Stemmer.stemWord(word1);
-                    String word2Stemmed = Stemmer.stemWord(word2);
+            if (conf.getBoolean(DictionaryStep.IDS_KEY, false)) {
+                goldIds = gold.byLexemeId(DictionaryStep.openCached(DictionaryStep.LEXEMES));
+            }
 
-                    // Add words to the GoldenStandard map
-                    addToGoldenStandard(word1Stemmed, word2Stemmed + " 1 " + isRelated);
-                    addToGoldenStandard(word2Stemmed, word1Stemmed + " 0 " + isRelated);
+            int salts = conf.getInt(SALTS_KEY, 1);
+            if (salts > 1) {
+                saltSuffixes = new byte[salts][];
+                for (int salt = 0; salt < salts; salt++) {
+                    saltSuffixes[salt] = (" " + salt).getBytes(StandardCharsets.UTF_8);
+                }
+                if (goldIds != null) {
+                    features = DictionaryStep.openCached(DictionaryStep.FEATURES).size();
+                } else {
+                    boundaries = parseBoundaries(conf.get(BOUNDARIES_KEY, ""));
                 }
             }
         }
 
-        /**
-         * Helper method to add word relationships to the GoldenStandard map.
-        */
-        private void addToGoldenStandard(String key, String value) {
-            GoldenStandard.computeIfAbsent(key, k -> new HashSet<>()).add(value);
+        /*
+         * The range of the feature. Ranges follow the feature order of CompositeKey, so the pairs of a feature
+         * stay in one range and every range holds the features after those of the lower ones.
+         */
+        private int salt(Text feature, int fid) {
+            if (boundaries == null) {
+                return (int) Math.min(saltSuffixes.length - 1, (long) fid * saltSuffixes.length / Math.max(features, 1));
+            }
+            // Number of boundaries <= feature
+            int low = 0;
+            int high = boundaries.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (boundaries[mid].compareTo(feature) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
         }
 
-
         @Override
-        public void map(LongWritable lineId, Text line, Context context) throws IOException, InterruptedException {
+        public void map(K key, AssocVector assoc, Context context) throws IOException, InterruptedException {
+
+            int word;
+            Text feature;
+            int fid = -1;
+            if (goldIds != null) {
+                long pair = ((LongWritable) key).get();
+                word = goldIds.find(PairCount.lexemeId(pair));
+                if (word < 0) {
+                    return;
+                }
 
-            String[] fields = line.toString().split("\\s+");
-            if (fields.length != 6){
-                return;
+                // Features are only compared from here on, so the id as 4 big-endian bytes stands in for the word
+                fid = PairCount.featureId(pair);
+                featureIdBytes[0] = (byte) (fid >>> 24);
+                featureIdBytes[1] = (byte) (fid >>> 16);
+                featureIdBytes[2] = (byte) (fid >>> 8);
+                featureIdBytes[3] = (byte) fid;
+                featureId.set(featureIdBytes, 0, 4);
+                feature = featureId;
+            } else {
+                LexemeFeatureKey lexemeFeature = (LexemeFeatureKey) key;
+                word = gold.find(lexemeFeature.getLexeme());
+                if (word < 0) {
+                    return;
+                }
+                feature = lexemeFeature.getFeature();
             }
-            String lex = fields[0];
-            String feat = fields[1];
-
-            String assoc_freq = fields[2];
-            String assoc_prob = fields[3];
-            String assoc_PMI = fields[4];
-            String assoc_t_test = fields[5];
-
-             if (GoldenStandard.containsKey(lex)){
-                 String w1;
-                 String w2;
-                for (String val : GoldenStandard.get(lex)){
-                    String[] wordToPos = val.split(" ");
-                    String pos = wordToPos[1];
-                    String isRelated = wordToPos[2];
-
-                    if (pos.equals("0")) {
-                        w1 = wordToPos[0];
-                        w2 = lex;
-                    } else {
-                        w1 = lex;
-                        w2 = wordToPos[0];
-                    }
-
-                    String key = String.format("%s %s", w1, w2);
-                    CompositeKey compositeKey = new CompositeKey(key, feat, isRelated);
-                    context.write(compositeKey,
-                            new Text(String.format("%s %s %s %s %s %s", feat, lex, assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)));
 
+            byte[] suffix = saltSuffixes == null ? null : saltSuffixes[salt(feature, fid)];
+            for (int entry = gold.firstEntry(word); entry < gold.endEntry(word); entry++) {
+                Text pairKey = gold.pairKey(entry);
+                if (suffix != null) {
+                    saltedKey.set(pairKey);
+                    saltedKey.append(suffix, 0, suffix.length);
+                    pairKey = saltedKey;
                 }
-             }
+                outKey.set(pairKey, feature, gold.label(entry), gold.isLeft(entry));
+                context.write(outKey, assoc);
+            }
         }
-
-
     }
 
     ///
-    /// input: <key, value>: key = lineID ,
-    ///                       value = CompositeKey("w1 w2", feature, isRelated)     feature lexeme assoc_freq=_ assoc_prob=_ assoc_PMI=_ assoc_t_test=_
-    ///                       or value = CompositeKey("w2 w1", feature, isRelated)     feature lexeme assoc_freq=_ assoc_prob=_ assoc_PMI=_ assoc_t_test=_
+    /// input: <key, value>: key = CompositeKey("w1 w2", feature, isRelated, word is w1),
+    ///                      value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
     ///
     /// output: <key, value>: key = w1 w2 isRelated,
     ///                      value = 24-dimensioned similarity vector
     ///
-    public static class ReducerClass extends Reducer<CompositeKey, Text, Text, Text> {
-        public final String[] ZEROS = {"_","_","0=0","0=0","0=0","0=0"};
-
-        public double[] distManhattan = new double[4];
-        public double[] distEuclidean = new double[4];
-        public double[][] simCosine = new double[4][3];
-        public double[][] simJaccard = new double[4][2];
-        public double[][] simDice = new double[4][2];
-        public double[][] simJS = new double[4][2];
-
-        /** DIFF-MATRIX:
-         *              distManhattan   distEuclidean   simCosine   simJaccard  simDice  simJS
-         * assoc_freq
-         * assoc_prob
-         * assoc_PMI
-         * assoc_t_test
-         */
+    public static class ReducerClass extends Reducer<CompositeKey, AssocVector, Text, Text> {
+        private final SimilarityKernel kernel = new SimilarityKernel();
+        private final double[] similarity = new double[SimilarityKernel.DIMENSIONS];
+
+        private final Text lastFeature = new Text();
+        private final double[] lastVal = new double[AssocVector.SIZE];
+
+        private final Text outKey = new Text();
+        private final Text outValue = new Text();
 
         @Override
-        public void reduce(CompositeKey compKey, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+        public void reduce(CompositeKey compKey, Iterable<AssocVector> values, Context context) throws IOException, InterruptedException {
             // Split the key into words
-            String key = compKey.getOriginalKey();
-            String isRelated = compKey.getIsRelated();
+            String key = compKey.getOriginalKey().toString();
+            String isRelated = compKey.getIsRelated().toString();
             String[] words = key.split("\\s+");
             if (words.length != 2) {
                 return; // Invalid key format, skip processing
@@ -206,206 +249,406 @@ public class Step4 {
             String w1 = words[0];
             String w2 = words[1];
 
-            String[] lastVal = null;
+            accumulate(compKey, values, kernel, lastFeature, lastVal);
+            kernel.result(similarity);
+            kernel.reset();
 
-            for (Text val : values) {
-                String[] parts = val.toString().split("\\s+");
-                if (parts.length != 6) {
-                    continue;
-                }
-                // Handle the first value
-                if (lastVal == null) {
-                    lastVal = parts;
-                    continue;
-                }
+            outKey.set(w1 + " " + w2 + " " + isRelated);
+            outValue.set(Arrays.toString(similarity));
+            context.write(outKey, outValue);
+        }
+    }
 
-                // Compare lastVal and parts
-                if (lastVal[0].equals(parts[0])) { // Complete pair
-                    if (lastVal[1].equals(w1)) {
-                        calculateDiff(lastVal, parts);
-                    } else {
-                        calculateDiff(parts, lastVal);
-                    }
-                    lastVal = null;
-                } else { // Incomplete pair
-                    if (lastVal[1].equals(w1)) {
-                        calculateDiff(lastVal, ZEROS);
-                    } else {
-                        calculateDiff(ZEROS, lastVal);
-                    }
-                    lastVal = parts;
-                }
+    /**
+     * Adds the features of one reduce group to the kernel, pairing the values of both words that share a feature.
+     * lastFeature and lastVal are scratch space.
+     */
+    static void accumulate(CompositeKey compKey, Iterable<AssocVector> values, SimilarityKernel kernel,
+                           Text lastFeature, double[] lastVal) {
+        // The framework refills compKey for every value, so its feature and side belong to the current value
+        boolean hasLast = false;
+        boolean lastLeft = false;
+
+        for (AssocVector val : values) {
+            Text feature = compKey.getFeature();
+            boolean left = compKey.isLeft();
+
+            // Handle the first value
+            if (!hasLast) {
+                hasLast = true;
+                lastLeft = left;
+                lastFeature.set(feature);
+                System.arraycopy(val.values(), 0, lastVal, 0, AssocVector.SIZE);
+                continue;
             }
 
-            // Handle the last value if needed (in case of an incomplete pair)
-            if (lastVal != null) {
-                if (lastVal[1].equals(w1)) {
-                    calculateDiff(lastVal, ZEROS);
+            // Compare lastVal and val
+            if (lastFeature.equals(feature)) { // Complete pair
+                if (lastLeft) {
+                    kernel.add(lastVal, val.values());
                 } else {
-                    calculateDiff(ZEROS, lastVal);
+                    kernel.add(val.values(), lastVal);
                 }
+                hasLast = false;
+            } else { // Incomplete pair
+                kernel.addOneSided(lastVal, lastLeft);
+                lastLeft = left;
+                lastFeature.set(feature);
+                System.arraycopy(val.values(), 0, lastVal, 0, AssocVector.SIZE);
             }
+        }
 
-            // Final calculations
-            double[][] diffMetrix = new double[4][6];
+        // Handle the last value if needed (in case of an incomplete pair)
+        if (hasLast) {
+            kernel.addOneSided(lastVal, lastLeft);
+        }
+    }
 
-            for (int i = 0; i < 4; i++) {
-                // If the final result is meaningless, count it as unrelated
+    ///
+    /// First job of step4.salts > 1: the sums of the features of one range of a pair.
+    ///
+    /// input: <key, value>: key = CompositeKey("w1 w2 salt", feature, isRelated, word is w1),
+    ///                      value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
+    ///
+    /// output: <key, value>: key = w1 w2 isRelated,
+    ///                      value = KernelPartial(salt, sums)
+    ///
+    public static class PartialReducerClass extends Reducer<CompositeKey, AssocVector, Text, KernelPartial> {
+        private final SimilarityKernel kernel = new SimilarityKernel();
+        private final KernelPartial partial = new KernelPartial();
 
-                // Manhattan distance
-                if (Double.isNaN(distManhattan[i])) {
-                    diffMetrix[i][0] = Double.POSITIVE_INFINITY;
-                } else {
-                    diffMetrix[i][0] = distManhattan[i];
-                }
+        private final Text lastFeature = new Text();
+        private final double[] lastVal = new double[AssocVector.SIZE];
 
-                // Euclidean distance
-                if (distEuclidean[i] < 0 || Double.isNaN(distEuclidean[i])) {
-                    diffMetrix[i][1] = Double.POSITIVE_INFINITY;
-                } else {
-                    diffMetrix[i][1] = Math.sqrt(distEuclidean[i]);
-                }
+        private final Text outKey = new Text();
 
-                // Cosine similarity
-                if (simCosine[i][1] <= 0 || simCosine[i][2] <= 0 || Double.isNaN(simCosine[i][0] / (Math.sqrt(simCosine[i][1]) * Math.sqrt(simCosine[i][2])))) {
-                    diffMetrix[i][2] = 0;
-                } else {
-                    diffMetrix[i][2] = simCosine[i][0] / (Math.sqrt(simCosine[i][1]) * Math.sqrt(simCosine[i][2]));
-                }
+        @Override
+        public void reduce(CompositeKey compKey, Iterable<AssocVector> values, Context context) throws IOException, InterruptedException {
+            String[] words = compKey.getOriginalKey().toString().split("\\s+");
+            if (words.length != 3) {
+                return; // Invalid key format, skip processing
+            }
+            outKey.set(words[0] + " " + words[1] + " " + compKey.getIsRelated());
 
-                // Jaccard similarity
-                if (simJaccard[i][1] == 0 || Double.isNaN(simJaccard[i][0] / simJaccard[i][1])) {
-                    diffMetrix[i][3] = 0;
-                } else {
-                    diffMetrix[i][3] = simJaccard[i][0] / simJaccard[i][1];
-                }
+            accumulate(compKey, values, kernel, lastFeature, lastVal);
+            partial.set(Integer.parseInt(words[2]), kernel);
+            kernel.reset();
+            context.write(outKey, partial);
+        }
+    }
 
-                // Dice similarity
-                if (simDice[i][1] == 0 || Double.isNaN(2 * simDice[i][0] / simDice[i][1])) {
-                    diffMetrix[i][4] = 0;
-                } else {
-                    diffMetrix[i][4] = 2 * simDice[i][0] / simDice[i][1];
-                }
+    ///
+    /// Second job of step4.salts > 1: merges the ranges of a pair in feature order.
+    ///
+    /// input: <key, value>: key = w1 w2 isRelated,
+    ///                      value = KernelPartial(salt, sums)
+    ///
+    /// output: <key, value>: key = w1 w2 isRelated,
+    ///                      value = 24-dimensioned similarity vector
+    ///
+    public static class MergeReducerClass extends Reducer<Text, KernelPartial, Text, Text> {
+        private final SimilarityKernel kernel = new SimilarityKernel();
+        private final double[] similarity = new double[SimilarityKernel.DIMENSIONS];
+        private final Text outValue = new Text();
 
-                // JS divergence
-                if (Double.isNaN(simJS[i][0] + simJS[i][1])) {
-                    diffMetrix[i][5] = Double.POSITIVE_INFINITY;
-                } else {
-                    diffMetrix[i][5] = simJS[i][0] + simJS[i][1];
-                }
+        // The partial of every salt, null where the pair has no feature in the range
+        private KernelPartial[] partials;
+        private KernelPartial[] bySalt;
+
+        @Override
+        protected void setup(Context context) {
+            int salts = context.getConfiguration().getInt(SALTS_KEY, 1);
+            partials = new KernelPartial[salts];
+            bySalt = new KernelPartial[salts];
+            for (int salt = 0; salt < salts; salt++) {
+                partials[salt] = new KernelPartial();
             }
+        }
 
-            double[] flattenDiffMatrix = Arrays.stream(diffMetrix)
-                                                .flatMapToDouble(Arrays::stream)
-                                                .toArray();
+        @Override
+        public void reduce(Text key, Iterable<KernelPartial> values, Context context) throws IOException, InterruptedException {
+            Arrays.fill(bySalt, null);
+            for (KernelPartial value : values) {
+                int salt = value.getSalt();
+                partials[salt].set(value);
+                bySalt[salt] = partials[salt];
+            }
 
-            context.write(new Text(String.format("%s %s %s", w1, w2, isRelated)), new Text(Arrays.toString(flattenDiffMatrix)));
+            for (KernelPartial partial : bySalt) {
+                if (partial != null) {
+                    partial.mergeInto(kernel);
+                }
+            }
+            kernel.result(similarity);
+            kernel.reset();
 
-            cleanDiffMatrix();
+            outValue.set(Arrays.toString(similarity));
+            context.write(key, outValue);
+        }
+    }
 
+    public static class PartitionerClass extends Partitioner<CompositeKey, AssocVector> {
+        @Override
+        public int getPartition(CompositeKey key, AssocVector value, int numPartitions) {
+            return (key.getOriginalKey().hashCode() & Integer.MAX_VALUE) % numPartitions;
         }
+    }
 
-        private void calculateDiff(String[] l1,String[] l2) throws IOException, InterruptedException {
-            if (l1.length != l2.length){
-                return;
-            }
+    ///
+    /// Raw comparators over the serialized CompositeKey: originalKey, feature, left, isRelated
+    ///
+    public static class CompositeKeyComparator extends WritableComparator {
+        protected CompositeKeyComparator() {
+            super(CompositeKey.class);
+        }
 
-            for (int i = 2; i < l1.length; i++) {
-
-                double val1 = Double.parseDouble(l1[i].split("=")[1]);
-                double val2 = Double.parseDouble(l2[i].split("=")[1]);
-                
-                handleDistManhattan(i-2, val1, val2);
-                handleDistEuclidean(i-2, val1, val2);
-                handleSimCosine(i-2, val1, val2);
-                handleSimJaccard(i-2, val1, val2);
-                handleSimDice(i-2, val1, val2);
-                handleSimJS(i-2, val1, val2);
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int cmp = TextBytes.compare(b1, s1, b2, s2);
+            if (cmp != 0) {
+                return cmp;
             }
+            s1 += TextBytes.size(b1, s1);
+            s2 += TextBytes.size(b2, s2);
+            cmp = TextBytes.compare(b1, s1, b2, s2);
+            if (cmp != 0) {
+                return cmp;
+            }
+            s1 += TextBytes.size(b1, s1);
+            s2 += TextBytes.size(b2, s2);
+            return b2[s2] - b1[s1]; // w1 side first
         }
+    }
 
-        private void handleDistManhattan(int i, double val1, double val2){
-            distManhattan[i] += Math.abs(val1 - val2);
+    public static class OriginalKeyGroupingComparator extends WritableComparator {
+        protected OriginalKeyGroupingComparator() {
+            super(CompositeKey.class);
         }
 
-        private void handleDistEuclidean(int i, double val1, double val2){
-            distEuclidean[i] += (val1 + val2) * (val1 + val2);
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return TextBytes.compare(b1, s1, b2, s2);
         }
+    }
 
-        private void handleSimCosine(int i, double val1, double val2) throws IOException, InterruptedException {
-            simCosine[i][0] += (val1 * val2);
-            simCosine[i][1] += val1 * val1;
-            simCosine[i][2] += val2 * val2;
-        }
+    public static Job createJob(Configuration conf, String inputPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "Step4");
 
-        private void handleSimJaccard(int i, double val1, double val2){
+        job.setJarByClass(Step4.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(ReducerClass.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        configureMap(job, inputPath);
 
-            simJaccard[i][0] += Math.min(val1,val2);
-            simJaccard[i][1] += Math.max(val1,val2);
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    /**
+     * The first job of step4.salts > 1: the mappers split the features of every pair into step4.salts ranges,
+     * each one reduced on its own into the partial sums of the pair's kernel.
+     * The ranges of string features are picked from a sample of the input, ids are split into equal ranges.
+     */
+    public static Job createPartialJob(Configuration conf, String inputPath, String outputPath) throws IOException {
+        int salts = conf.getInt(SALTS_KEY, 1);
+        if (!conf.getBoolean(DictionaryStep.IDS_KEY, false) && conf.get(BOUNDARIES_KEY) == null) {
+            conf.set(BOUNDARIES_KEY, sampleBoundaries(conf, inputPath, salts));
         }
+        Job job = Job.getInstance(conf, "Step4Partial");
+
+        job.setJarByClass(Step4.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(PartialReducerClass.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(KernelPartial.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+
+        configureMap(job, inputPath);
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    /**
+     * The second job of step4.salts > 1: merges the partial sums of every pair into its similarity vector,
+     * with the output of createJob.
+     */
+    public static Job createMergeJob(Configuration conf, String inputPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "Step4Merge");
+
+        job.setJarByClass(Step4.class);
+        job.setMapperClass(Mapper.class);
+        job.setReducerClass(MergeReducerClass.class);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(KernelPartial.class);
 
-        private void handleSimDice(int i, double val1, double val2){
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        ReducerPlanner.apply(job, inputPath, mergeExpansion(conf, inputPath));
+        CombinedInput.addInputPath(job, new Path(inputPath + "part-r*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    private static void configureMap(Job job, String inputPath) throws IOException {
+        Configuration conf = job.getConfiguration();
+
+        job.setGroupingComparatorClass(OriginalKeyGroupingComparator.class);
+        job.setSortComparatorClass(CompositeKeyComparator.class);
+        job.setPartitionerClass(Step4.PartitionerClass.class);
 
-            simDice[i][0] += Math.min(val1,val2);
-            simDice[i][1] += val1 + val2;
+        job.setMapOutputKeyClass(CompositeKey.class);
+        job.setMapOutputValueClass(AssocVector.class);
+
+        if (conf.getBoolean(DictionaryStep.IDS_KEY, false)) {
+            DictionaryStep.addToCache(job, conf.get(DictionaryStep.DICTIONARY_KEY));
         }
 
-        private void handleSimJS(int i, double val1, double val2) throws IOException, InterruptedException{
-            double mean = (val1 + val2) / 2.0;
-            if (val1 == 0 && val2 == 0) {
-                simJS[i][0] = 0;
-                simJS[i][1] = 0;
-                return;
-            }
-                        
-            simJS[i][0] += (val1 > 0 && mean > 0) ? val1 * Math.log(val1 / mean) : 0;
-            simJS[i][1] += (val2 > 0 && mean > 0) ? val2 * Math.log(val2 / mean) : 0;
-        }
-        
-        private void cleanDiffMatrix() {
-            Arrays.fill(distManhattan, 0);
-            Arrays.fill(distEuclidean, 0);
-
-            for (int i = 0; i < 4; i++) {
-                Arrays.fill(simCosine[i], 0);
-                Arrays.fill(simDice[i], 0);
-                Arrays.fill(simJaccard[i], 0);
-                Arrays.fill(simJS[i], 0);
+        ReducerPlanner.apply(job, inputPath, mapExpansion(conf, inputPath));
+        CombinedInput.addInputPath(job, new Path(inputPath + "part-r*"));
+    }
+
+    /*
+     * The planner's expansion for the Step4 map: it drops the lexemes that aren't gold words and writes the others
+     * once per gold pair of the word, so the bytes it writes per Step3 record are measured on a sample of Step3's
+     * output, with the records sized as the mapper would write them.
+     */
+    private static double mapExpansion(Configuration conf, String inputPath) throws IOException {
+        ReducerPlanner.Stats stats = ReducerPlanner.expansionStats(conf, inputPath);
+        if (stats == null) {
+            return 1;
+        }
+        GoldStandardIndex gold;
+        try (BufferedReader reader = GoldStandard.open(conf, conf.get(GoldStandard.PATH_KEY))) {
+            gold = GoldStandardIndex.read(reader);
+        }
+        int salts = conf.getInt(SALTS_KEY, 1);
+        int suffixLength = salts > 1 ? (" " + (salts - 1)).length() : 0;
+        int sampleSize = conf.getInt(SAMPLE_SIZE_KEY, DEFAULT_SAMPLE_SIZE);
+        Path glob = new Path(inputPath + "part-r*");
+
+        // Records sampled, map output bytes they make
+        long[] sampled = new long[2];
+        if (conf.getBoolean(DictionaryStep.IDS_KEY, false)) {
+            File dir = Files.createTempDirectory("step4-plan").toFile();
+            File table = new File(dir, DictionaryStep.LEXEMES);
+            try {
+                String dictionary = conf.get(DictionaryStep.DICTIONARY_KEY);
+                Path lexemesPath = new Path(dictionary.endsWith("/") ? dictionary : dictionary + "/", DictionaryStep.LEXEMES);
+                lexemesPath.getFileSystem(conf).copyToLocalFile(false, lexemesPath, new Path(table.toURI()), true);
+                GoldStandardIndex.IdLookup goldIds = gold.byLexemeId(WordTable.open(table));
+                RecordSampler.sample(conf, glob, sampleSize, new LongWritable(), new AssocVector(), (key, value) -> {
+                    sampled[0]++;
+                    sampled[1] += mapOutputBytes(gold, goldIds.find(PairCount.lexemeId(key.get())), 4, suffixLength);
+                });
+            } finally {
+                table.delete();
+                dir.delete();
             }
+        } else {
+            RecordSampler.sample(conf, glob, sampleSize, new LexemeFeatureKey(), new AssocVector(), (key, value) -> {
+                sampled[0]++;
+                sampled[1] += mapOutputBytes(gold, gold.find(key.getLexeme()), key.getFeature().getLength(), suffixLength);
+            });
+        }
+        if (sampled[0] == 0) {
+            return 1;
         }
+        double bytesPerRecord = (double) sampled[1] / sampled[0];
+        System.out.println(String.format("[INFO] Planner: the Step4 map writes %.1f bytes per Step3 record (%,d sampled)",
+                bytesPerRecord, sampled[0]));
+        return ReducerPlanner.expansion(stats, bytesPerRecord);
     }
 
-    public static class PartitionerClass extends Partitioner<CompositeKey, Text> {
-        @Override
-        public int getPartition(CompositeKey key, Text value, int numPartitions) {
-            return (key.getOriginalKey().hashCode() & Integer.MAX_VALUE) % numPartitions;
+    // The serialized CompositeKey and AssocVector of every gold pair of the word
+    private static long mapOutputBytes(GoldStandardIndex gold, int word, int featureLength, int suffixLength) {
+        if (word < 0) {
+            return 0;
+        }
+        long bytes = 0;
+        for (int entry = gold.firstEntry(word); entry < gold.endEntry(word); entry++) {
+            bytes += textBytes(gold.pairKey(entry).getLength() + suffixLength) + textBytes(featureLength) + 1
+                    + textBytes(gold.label(entry).getLength()) + AssocVector.SIZE * 8;
         }
+        return bytes;
     }
 
-    public static class CompositeKeyComparator extends WritableComparator {
-        protected CompositeKeyComparator() {
-            super(CompositeKey.class, true);
+    /*
+     * The planner's expansion for the merge: its identity map writes a "w1 w2 isRelated" key and a KernelPartial
+     * for every partial, far more bytes than the partial job's map wrote per record.
+     */
+    private static double mergeExpansion(Configuration conf, String inputPath) throws IOException {
+        ReducerPlanner.Stats stats = ReducerPlanner.expansionStats(conf, inputPath);
+        if (stats == null) {
+            return 1;
+        }
+        GoldStandardIndex gold;
+        try (BufferedReader reader = GoldStandard.open(conf, conf.get(GoldStandard.PATH_KEY))) {
+            gold = GoldStandardIndex.read(reader);
+        }
+        int entries = gold.size() == 0 ? 0 : gold.endEntry(gold.size() - 1);
+        long keyBytes = 0;
+        for (int entry = 0; entry < entries; entry++) {
+            keyBytes += textBytes(gold.pairKey(entry).getLength() + 1 + gold.label(entry).getLength());
         }
+        double bytesPerRecord = (entries == 0 ? 0 : (double) keyBytes / entries) + KernelPartial.BYTES;
+        return ReducerPlanner.expansion(stats, bytesPerRecord);
+    }
 
-        @Override
-        public int compare(WritableComparable a, WritableComparable b) {
-            CompositeKey key1 = (CompositeKey) a;
-            CompositeKey key2 = (CompositeKey) b;
-            return key1.compareTo(key2);
+    private static int textBytes(int length) {
+        return WritableUtils.getVIntSize(length) + length;
+    }
+
+    /*
+     * The first feature of every range but the first, from a sample of Step3's features: cut at equal numbers
+     * of sampled records, so the ranges hold about as many records of the gold words as each other.
+     */
+    private static String sampleBoundaries(Configuration conf, String inputPath, int salts) throws IOException {
+        long start = System.nanoTime();
+        List<Text> features = new ArrayList<>();
+        RecordSampler.sample(conf, new Path(inputPath + "part-r*"), conf.getInt(SAMPLE_SIZE_KEY, DEFAULT_SAMPLE_SIZE),
+                new LexemeFeatureKey(), new AssocVector(), (key, value) -> features.add(new Text(key.getFeature())));
+        Collections.sort(features);
+
+        StringBuilder boundaries = new StringBuilder();
+        Text last = null;
+        for (int salt = 1; salt < salts && !features.isEmpty(); salt++) {
+            Text boundary = features.get((int) ((long) salt * features.size() / salts));
+            if (last != null && last.equals(boundary)) {
+                continue; // a range of a single frequent feature, merged with the next one
+            }
+            if (boundaries.length() > 0) {
+                boundaries.append(' ');
+            }
+            boundaries.append(boundary);
+            last = boundary;
         }
+        System.out.println(String.format("[INFO] Sampled %,d Step3 features for %d Step4 ranges in %.2f seconds",
+                features.size(), salts, (System.nanoTime() - start) / 1e9));
+        return boundaries.toString();
     }
 
-    public static class OriginalKeyGroupingComparator extends WritableComparator {
-        protected OriginalKeyGroupingComparator() {
-            super(CompositeKey.class, true);
+    private static Text[] parseBoundaries(String boundaries) {
+        if (boundaries.isEmpty()) {
+            return new Text[0];
         }
-    
-        @Override
-        public int compare(WritableComparable a, WritableComparable b) {
-            CompositeKey key1 = (CompositeKey) a;
-            CompositeKey key2 = (CompositeKey) b;
-            return key1.getOriginalKey().compareTo(key2.getOriginalKey());
+        String[] parts = boundaries.split(" ");
+        Text[] texts = new Text[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            texts[i] = new Text(parts[i]);
         }
+        return texts;
     }
 
     public static void main(String[] args) throws Exception {
@@ -416,32 +659,35 @@ public class Step4 {
         String goldStandardPath = args[4];
 
         Configuration conf = new Configuration();
-        conf.set("goldStandardPath", goldStandardPath);
-
-        Job job = Job.getInstance(conf, "Step4");
-
-        job.setJarByClass(Step4.class);
-        job.setMapperClass(MapperClass.class);
-        job.setReducerClass(ReducerClass.class);
-
-        job.setGroupingComparatorClass(OriginalKeyGroupingComparator.class);
-        job.setSortComparatorClass(CompositeKeyComparator.class);
-        job.setPartitionerClass(Step4.PartitionerClass.class);
-
-        job.setMapOutputKeyClass(CompositeKey.class);
-        job.setMapOutputValueClass(Text.class);
-        
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-
-        job.setInputFormatClass(TextInputFormat.class);
-        
-        FileInputFormat.addInputPath(job, new Path(inputPath + "part-r*"));
+        PipelineOptions.apply(conf, args, 5);
+        conf.set(GoldStandard.PATH_KEY, goldStandardPath);
+
+        if (conf.getInt(SALTS_KEY, 1) > 1) {
+            String partialsPath = (outputPath.endsWith("/") ? outputPath.substring(0, outputPath.length() - 1)
+                    : outputPath) + "_partials/";
+            Job partialJob = createPartialJob(conf, inputPath, partialsPath);
+            if (!partialJob.waitForCompletion(true)) {
+                System.exit(1);
+            }
+            CombinedInput.report(partialJob);
+            ReducerPlanner.writeStats(partialJob);
+
+            Job mergeJob = createMergeJob(conf, partialsPath, outputPath);
+            boolean success = mergeJob.waitForCompletion(true);
+            if (success) {
+                CombinedInput.report(mergeJob);
+                ReducerPlanner.writeStats(mergeJob);
+            }
+            System.exit(success ? 0 : 1);
+        }
 
-        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        Job job = createJob(conf, inputPath, outputPath);
 
         boolean success = job.waitForCompletion(true);
+        if (success) {
+            CombinedInput.report(job);
+            ReducerPlanner.writeStats(job);
+        }
         System.exit(success ? 0 : 1);
     }
 }
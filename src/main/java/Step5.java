@@ -4,132 +4,83 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.FileWriter;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.services.s3.model.S3ObjectInputStream;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.AmazonS3;
 
-import weka.core.converters.ConverterUtils.DataSource;
+import org.apache.hadoop.conf.Configuration;
+
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
 import weka.classifiers.trees.RandomForest;
 import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
 
 public class Step5 {
+    /** evaluate (default): cross-validate a RandomForest, train: save one built on all the data, score: classify with a saved one */
+    public static final String MODE_KEY = "step5.mode";
+    /** score: the model to load, an S3 key in the bucket (local file for runLocal), <outputFolder>step5_forest.model by default */
+    public static final String MODEL_KEY = "step5.model";
+
+    /** Concurrent GETs of the part files, and the size of each ranged GET, see PartFileFetcher */
+    public static final String FETCH_THREADS_KEY = "step5.fetch.threads";
+    public static final String FETCH_RANGE_KEY = "step5.fetch.rangeSize";
+
+    /** Also write the data set as step5_result.arff, off by default */
+    public static final String WRITE_ARFF_KEY = "step5.writeArff";
+
+    /** Threads for reading the part files and building the forests, all cores by default. Doesn't change the results. */
+    public static final String THREADS_KEY = "step5.threads";
+
+    public static final String MODEL_NAME = "step5_forest.model";
+    public static final String SCORES_NAME = "step5_scores.txt";
+    /** Step4's part files, read the same way by runLocal and on EMR in every mode */
+    public static final String PART_PREFIX = "part-r";
 
     private static final AmazonS3 s3Client = AmazonS3ClientBuilder
                                                 .standard()
                                                 .withRegion("us-east-1")
                                                 .build();
 
-    private static List<String> listPartFiles(String bucketName, String s3InputFolder)
-            throws AmazonClientException {
-
-        List<String> partFiles = new ArrayList<>();
-        ObjectListing objectListing = s3Client.listObjects(bucketName, s3InputFolder);
-
-        do {
-            for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
-                String key = summary.getKey();
-                // Only pick files that start with "part-r"
-                if (key.startsWith(s3InputFolder + "part-r")) {
-                    partFiles.add(key);
-                }
-            }
-            objectListing = s3Client.listNextBatchOfObjects(objectListing);
-        } while (objectListing.isTruncated());
-
-        return partFiles;
+    private static PartFileFetcher fetcher(PartFileFetcher.Store store, Configuration conf) {
+        return new PartFileFetcher(store, conf.getInt(FETCH_THREADS_KEY, PartFileFetcher.DEFAULT_PARALLELISM),
+                conf.getLong(FETCH_RANGE_KEY, PartFileFetcher.DEFAULT_RANGE_SIZE));
     }
 
-    private static File createArffFile(List<String> partFiles, String bucketName) {
-        File arffFile = new File("/tmp/step5_data.arff");
-        try (BufferedWriter arffWriter = new BufferedWriter(new FileWriter(arffFile))) {
-
-            writeArffHeader(arffWriter);
-
-            // Read the content of each part file from S3 and write to ARFF
-            for (String key : partFiles) {
-                try (S3Object s3Object = s3Client.getObject(bucketName, key);
-                     S3ObjectInputStream s3ObjectInputStream = s3Object.getObjectContent();
-                     BufferedReader br = new BufferedReader(new InputStreamReader(s3ObjectInputStream))) {
-
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        processLine(line, arffWriter);
-                    }
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("[ERROR] Failed to write ARFF file: " + e.getMessage());
+    ///
+    /// Load the Step4 part files, one reader per part file, see InstanceLoader
+    ///
+    private static Instances loadInstances(PartFileFetcher fetcher, List<PartFileFetcher.Part> partFiles, int threads)
+            throws Exception {
+        List<InstanceLoader.PartSource> parts = new ArrayList<>();
+        for (PartFileFetcher.Part part : partFiles) {
+            parts.add(() -> new BufferedReader(new InputStreamReader(fetcher.open(part), StandardCharsets.UTF_8)));
         }
-
-        return arffFile;
+        return loadInstances(parts, threads);
     }
 
-    private static void writeArffHeader(BufferedWriter writer) throws IOException {
-
-        String[] attributes = { "freq_distManhattan", "freq_distEuclidean", "freq_simCosine", "freq_simJaccard",
-                "freq_simDice", "freq_simJS",
-                "prob_distManhattan", "prob_distEuclidean", "prob_simCosine", "prob_simJaccard", "prob_simDice",
-                "prob_simJS",
-                "PMI_distManhattan", "PMI_distEuclidean", "PMI_simCosine", "PMI_simJaccard", "PMI_simDice", "PMI_simJS",
-                "t-test_distManhattan", "t-test_distEuclidean", "t-test_simCosine", "t-test_simJaccard",
-                "t-test_simDice", "t-test_simJS" };
-
-        writer.write("@relation semantic_similarity\n\n");
-        for (String attribute : attributes) {
-            writer.write("@attribute " + attribute + " numeric\n");
-        }
-        writer.write("@attribute class {similar, not-similar}\n\n");
-        writer.write("@data\n");
+    private static Instances loadInstances(List<InstanceLoader.PartSource> parts, int threads) throws Exception {
+        long start = System.nanoTime();
+        Instances data = InstanceLoader.load(parts, threads);
+        System.out.println(String.format("[DEBUG] Loaded %d instances from %d part files in %.2f seconds",
+                data.numInstances(), parts.size(), (System.nanoTime() - start) / 1e9));
+        return data;
     }
 
-
-    private static void processLine(String line, BufferedWriter writer) throws IOException {
-        if (line == null || !line.contains("\t")) {
-            System.err.println("[ERROR] Invalid line format: Missing tab separator.");
-        }
-
-        String[] parts = line.split("\t", 2);
-        if (parts.length != 2) {
-            System.err.println("Invalid line format: Expected two parts separated by a tab.");
-        }
-
-        String[] keyParts = parts[0].split("\\s+");
-        if (keyParts.length != 3) {
-            System.err.println("Invalid key format: Expected 'word1 word2 isRelated'.");
-        }
-
-        boolean isRelated = Boolean.parseBoolean(keyParts[2]);
-        String isSimilar = isRelated ? "similar" : "not-similar";
-
-        String values = parts[1]
-                .replaceAll("[\\[\\]]", "")
-                .replaceAll("\\s+", "");
-
-        String arffLine = String.format("%s,%s%n", values, isSimilar);
-
-        writer.write(arffLine);
-
-    }
-
-    private static File evaluateClassifier(File arffFile) {
-        File outputFile = new File("/tmp/step5_output.txt");
+    private static File evaluateClassifier(Instances data, File outputFile, int threads) {
 
         try (BufferedWriter outputWriter = new BufferedWriter(new FileWriter(outputFile))) {
-            // Load data
-            Instances data = DataSource.read(arffFile.getAbsolutePath());
-            data.setClassIndex(data.numAttributes() - 1);
-
             int numFolds = Math.min(10, data.numInstances());
             if (numFolds < 2) {
                 System.err.println("[WARN] Dataset must have at least 2 instances for cross-validation. Skipping.");
@@ -143,9 +94,10 @@ public class Step5 {
             }
 
             // Classifier and evaluation
-            Classifier cls = new RandomForest();
-            Evaluation eval = new Evaluation(data);
-            eval.crossValidateModel(cls, data, numFolds, new Random(42));
+            long start = System.nanoTime();
+            Evaluation eval = crossValidate(data, numFolds, new Random(42), threads);
+            System.out.println(String.format("[DEBUG] Cross-validation on %d threads took %.2f seconds",
+                    threads, (System.nanoTime() - start) / 1e9));
 
             // Write results
             outputWriter.write("=== RandomForest ===\n");
@@ -173,11 +125,117 @@ public class Step5 {
         return outputFile;
     }
 
+    ///
+    /// Same folds, forests and statistics as Evaluation.crossValidateModel(new RandomForest(), data, numFolds, random),
+    /// with the forests of the folds built concurrently.
+    ///
+    /// The train sets are drawn from random in fold order before any forest is built, as crossValidateModel draws them,
+    /// and the folds are evaluated in fold order, so the output is the same for every thread count.
+    /// All the train sets are held at once, numFolds copies of ~90% of the data.
+    ///
+    private static Evaluation crossValidate(Instances data, int numFolds, Random random, int threads) throws Exception {
+        Instances folds = new Instances(data);
+        folds.randomize(random);
+        if (folds.classAttribute().isNominal()) {
+            folds.stratify(numFolds);
+        }
+        List<Instances> trainSets = new ArrayList<>();
+        for (int fold = 0; fold < numFolds; fold++) {
+            trainSets.add(folds.trainCV(numFolds, fold, random));
+        }
+
+        // Folds run side by side, the cores left over go to the trees of each forest
+        int workers = Math.max(1, Math.min(threads, numFolds));
+        int slots = Math.max(1, threads / workers);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Classifier>> models = new ArrayList<>();
+            for (Instances train : trainSets) {
+                models.add(pool.submit(() -> {
+                    Classifier cls = forest(slots);
+                    cls.buildClassifier(train);
+                    return cls;
+                }));
+            }
+
+            Evaluation eval = new Evaluation(data);
+            for (int fold = 0; fold < numFolds; fold++) {
+                eval.setPriors(trainSets.get(fold));
+                eval.evaluateModel(models.get(fold).get(), folds.testCV(numFolds, fold));
+                models.set(fold, null);
+            }
+            return eval;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static RandomForest forest(int executionSlots) {
+        RandomForest forest = new RandomForest();
+        forest.setNumExecutionSlots(executionSlots);
+        return forest;
+    }
+
+    private static int threads(Configuration conf) {
+        return conf.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors());
+    }
+
+    ///
+    /// Build one RandomForest on all the data, as the folds of evaluateClassifier do, and serialize it
+    ///
+    private static File trainModel(Instances data, File modelFile, int threads) throws Exception {
+        Classifier cls = forest(threads);
+        cls.buildClassifier(data);
+        SerializationHelper.write(modelFile.getAbsolutePath(), cls);
+        System.out.println("[DEBUG] Trained on " + data.numInstances() + " instances, model written to " + modelFile);
+        return modelFile;
+    }
+
+    ///
+    /// Classify every Step4 line of the reader with the model, one line at a time.
+    /// output: word1 word2 label \t predicted class \t its probability
+    ///
+    private static long scoreLines(BufferedReader reader, Classifier cls, Instances header, BufferedWriter writer)
+            throws Exception {
+        double[] similarity = new double[VectorSchema.ATTRIBUTES.length];
+        long scored = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int tab = line.indexOf('\t');
+            if (tab < 0 || !VectorSchema.parse(line.substring(tab + 1), similarity)) {
+                System.err.println("[ERROR] Invalid line format: " + line);
+                continue;
+            }
+            double[] distribution = cls.distributionForInstance(VectorSchema.instance(header, similarity));
+            int best = Utils.maxIndex(distribution);
+            writer.write(line.substring(0, tab) + "\t" + header.classAttribute().value(best) + "\t" + distribution[best] + "\n");
+            scored++;
+        }
+        return scored;
+    }
+
+    private static File scoreFiles(PartFileFetcher fetcher, List<PartFileFetcher.Part> partFiles, Classifier cls,
+                                   File outputFile) throws Exception {
+        Instances header = VectorSchema.header();
+        long[] scored = new long[1];
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
+            // One part after the other, so the scores keep the order of the input
+            fetcher.forEach(partFiles, (part, in) -> {
+                BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                scored[0] += scoreLines(br, cls, header, writer);
+            });
+        }
+        System.out.println("[DEBUG] Scored " + scored[0] + " pairs");
+        return outputFile;
+    }
+
     private static void uploadResults(String bucketName, File arffFile, File outputFile, String s3OutputFolder) throws AmazonClientException {
-        // Upload ARFF
-        String resultKey = s3OutputFolder + "step5_result.arff";
-        s3Client.putObject(bucketName, resultKey, arffFile);
-        System.out.println("[DEBUG] ARFF file uploaded to s3://" + bucketName + "/" + resultKey);
+        // Upload ARFF, only written with step5.writeArff=true
+        if (arffFile != null) {
+            String resultKey = s3OutputFolder + "step5_result.arff";
+            s3Client.putObject(bucketName, resultKey, arffFile);
+            System.out.println("[DEBUG] ARFF file uploaded to s3://" + bucketName + "/" + resultKey);
+        }
 
         // Upload output
         String outputFileKey = s3OutputFolder + "step5_output.txt";
@@ -185,10 +243,48 @@ public class Step5 {
         System.out.println("[DEBUG] Output file uploaded to s3://" + bucketName + "/" + outputFileKey);
     }
 
+    ///
+    /// Run Step5 on the Step4 output in a local directory, used by LocalPipeline, in one of the step5.mode modes:
+    /// evaluate (step5_output.txt), train (step5_forest.model, or step5.model) or score (classifies inputDir with
+    /// the step5.model file into step5_scores.txt). step5_result.arff is only written with step5.writeArff=true.
+    ///
+    public static File runLocal(File inputDir, File outputDir, Configuration conf) throws Exception {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Can't create " + outputDir);
+        }
+        String mode = conf.get(MODE_KEY, "evaluate");
+        File modelFile = conf.get(MODEL_KEY) == null ? null : new File(conf.get(MODEL_KEY));
+        if (mode.equals("score")) {
+            if (modelFile == null) {
+                throw new IllegalArgumentException(MODE_KEY + "=score needs " + MODEL_KEY);
+            }
+            Classifier cls = (Classifier) SerializationHelper.read(modelFile.getAbsolutePath());
+            try (PartFileFetcher fetcher = fetcher(PartFileFetcher.local(inputDir), conf)) {
+                return scoreFiles(fetcher, fetcher.list("", PART_PREFIX), cls, new File(outputDir, SCORES_NAME));
+            }
+        }
+
+        Instances data;
+        try (PartFileFetcher fetcher = fetcher(PartFileFetcher.local(inputDir), conf)) {
+            data = loadInstances(fetcher, fetcher.list("", PART_PREFIX), threads(conf));
+        }
+        if (conf.getBoolean(WRITE_ARFF_KEY, false)) {
+            InstanceLoader.writeArff(data, new File(outputDir, "step5_result.arff"));
+        }
+        switch (mode) {
+            case "evaluate":
+                return evaluateClassifier(data, new File(outputDir, "step5_output.txt"), threads(conf));
+            case "train":
+                return trainModel(data, modelFile != null ? modelFile : new File(outputDir, MODEL_NAME), threads(conf));
+            default:
+                throw new IllegalArgumentException("Unknown " + MODE_KEY + ": " + mode);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
 
         if (args.length < 3) {
-            System.err.println("Usage: Step5 <bucketName> <inputFolder> <outputFolder>");
+            System.err.println("Usage: Step5 <bucketName> <inputFolder> <outputFolder> [step5.mode=evaluate|train|score] [step5.model=<key>]");
             System.exit(1);
         }
 
@@ -196,15 +292,43 @@ public class Step5 {
         String s3InputFolder = args[2];
         String s3OutputFolder = args[3];
 
-        try{
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 4);
+        String mode = conf.get(MODE_KEY, "evaluate");
+        String modelKey = conf.get(MODEL_KEY, s3OutputFolder + MODEL_NAME);
 
-            List<String> partFiles = listPartFiles(bucketName, s3InputFolder);
+        try{
 
-            File arffFile = createArffFile(partFiles, bucketName);
+            PartFileFetcher fetcher = fetcher(PartFileFetcher.s3(s3Client, bucketName), conf);
+            List<PartFileFetcher.Part> partFiles = fetcher.list(s3InputFolder, PART_PREFIX);
+
+            if (mode.equals("train")) {
+                Instances data = loadInstances(fetcher, partFiles, threads(conf));
+                File modelFile = trainModel(data, new File("/tmp/" + MODEL_NAME), threads(conf));
+                s3Client.putObject(bucketName, modelKey, modelFile);
+                System.out.println("[DEBUG] Model uploaded to s3://" + bucketName + "/" + modelKey);
+
+            } else if (mode.equals("score")) {
+                File modelFile = new File("/tmp/" + MODEL_NAME);
+                s3Client.getObject(new GetObjectRequest(bucketName, modelKey), modelFile);
+                Classifier cls = (Classifier) SerializationHelper.read(modelFile.getAbsolutePath());
+
+                File scoresFile = scoreFiles(fetcher, partFiles, cls, new File("/tmp/" + SCORES_NAME));
+                String scoresKey = s3OutputFolder + SCORES_NAME;
+                s3Client.putObject(bucketName, scoresKey, scoresFile);
+                System.out.println("[DEBUG] Scores uploaded to s3://" + bucketName + "/" + scoresKey);
+
+            } else {
+                Instances data = loadInstances(fetcher, partFiles, threads(conf));
+                File arffFile = null;
+                if (conf.getBoolean(WRITE_ARFF_KEY, false)) {
+                    arffFile = InstanceLoader.writeArff(data, new File("/tmp/step5_data.arff"));
+                }
 
-            File analysisFile = evaluateClassifier(arffFile);
+                File analysisFile = evaluateClassifier(data, new File("/tmp/step5_output.txt"), threads(conf));
 
-            uploadResults(bucketName, arffFile, analysisFile, s3OutputFolder);
+                uploadResults(bucketName, arffFile, analysisFile, s3OutputFolder);
+            }
 
         }catch (AmazonClientException e) {
             // S3 or AWS related exceptions
@@ -0,0 +1,30 @@
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.IOException;
+
+/**
+ * Helpers for raw comparators over serialized Text fields (vint length followed by the UTF-8 bytes).
+ */
+class TextBytes {
+
+    /**
+     * Total serialized size of the Text starting at b[s].
+     */
+    public static int size(byte[] b, int s) {
+        try {
+            return WritableUtils.decodeVIntSize(b[s]) + WritableComparator.readVInt(b, s);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Byte order comparison of the serialized Texts starting at b1[s1] and b2[s2], same as Text.compareTo.
+     */
+    public static int compare(byte[] b1, int s1, byte[] b2, int s2) {
+        int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+        int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+        return WritableComparator.compareBytes(b1, s1 + n1, size(b1, s1) - n1, b2, s2 + n2, size(b2, s2) - n2);
+    }
+}
@@ -0,0 +1,601 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+///
+/// The K most similar lexemes of every lexeme, over the whole vocabulary, from Step3's output. Runs after DictionaryStep.
+///
+/// A lexeme's vector is its features weighted by one association measure (topk.measure: freq, prob, pmi or t_test,
+/// default pmi), features with a weight <= 0 are left out. The result is exact for the neighbours with a similarity
+/// of at least topk.threshold (topk.similarity: cosine, jaccard, dice or js): every lexeme gets its K best among them,
+/// a lexeme with fewer such neighbours gets fewer. Three jobs, with prefix filtering as in All-Pairs:
+///
+///     vectors:    group by lexeme, write its SparseVector (MapFiles keyed by lexeme id, as SignatureStep) and
+///                 index the prefix of its features. The features are put in one global order, rarest first by
+///                 their dictionary count, and the prefix goes up to where the rest (the suffix) can't add up to
+///                 the threshold with any vector (Similarity.suffixBound)
+///     pairs:      group by feature, every two lexemes that index it are candidates of each other
+///     top-k:      group by lexeme, score its candidates exactly on the full vectors and keep the topk.k best
+///
+/// The suffixes are tails of the same order, so the features two lexemes share outside of both prefixes are all in
+/// the longer of the two suffixes, and can't add up to the threshold: two lexemes with a similarity >= threshold
+/// share an indexed feature and are candidates. Frequent features end up in the suffixes and are rarely indexed,
+/// so a feature shared by most of the vocabulary doesn't pair it all up. topk.threshold=0 indexes every feature:
+/// exact over all neighbours, but quadratic on such features.
+///
+public class TopKStep {
+    public static final String K_KEY = "topk.k";
+    public static final String MEASURE_KEY = "topk.measure";
+    public static final String SIMILARITY_KEY = "topk.similarity";
+    public static final String THRESHOLD_KEY = "topk.threshold";
+    public static final String VECTORS_KEY = "topk.vectors";
+
+    public static final int DEFAULT_K = 10;
+    public static final double DEFAULT_THRESHOLD = 0.1;
+
+    public static final String INDEX = "index";
+
+    private static final double LOG_2 = Math.log(2);
+    // A suffix bound this close to the threshold stays indexed, against rounding in the bound and the score
+    private static final double SLACK = 1e-9;
+
+    ///
+    /// Every similarity is split into a sum over the shared features and the norms of the two vectors:
+    ///     cosine  = sum(x * y) / (|a| |b|)
+    ///     jaccard = sum(min) / (sum(a) + sum(b) - sum(min))
+    ///     dice    = 2 sum(min) / (sum(a) + sum(b))
+    ///     js      = 1 - JS divergence / 2 log 2, over a and b normalized to sum to 1. Features that only one side has
+    ///               add p log 2 each, that is 2 log 2 in total minus the shared features' share
+    ///
+    public enum Similarity {
+        COSINE, JACCARD, DICE, JS;
+
+        public static Similarity of(Configuration conf) {
+            return valueOf(conf.get(SIMILARITY_KEY, "cosine").toUpperCase());
+        }
+
+        public double norm(double sum, double sumSquares) {
+            return this == COSINE ? Math.sqrt(sumSquares) : sum;
+        }
+
+        /** Part of the similarity from one feature with weight x in a (norm na) and y in b (norm nb). */
+        public double shared(double x, double y, double na, double nb) {
+            switch (this) {
+                case COSINE:
+                    return x * y;
+                case JACCARD:
+                case DICE:
+                    return Math.min(x, y);
+                default:
+                    double p = x / na;
+                    double q = y / nb;
+                    double mean = (p + q) / 2;
+                    return p * Math.log(p / mean) + q * Math.log(q / mean) - (p + q) * LOG_2;
+            }
+        }
+
+        public double score(double shared, double na, double nb) {
+            switch (this) {
+                case COSINE:
+                    return shared / (na * nb);
+                case JACCARD:
+                    return shared / (na + nb - shared);
+                case DICE:
+                    return 2 * shared / (na + nb);
+                default:
+                    return -shared / (2 * LOG_2);
+            }
+        }
+
+        /**
+         * Upper bound of the similarity of b (norm nb) to any vector a that shares only features of a suffix of b,
+         * from the suffix's sums: of the weights y, of y^2 and of jsTerm(y / nb).
+         *     cosine:  sum(x * y) <= |a| |suffix|                  -> |suffix| / nb
+         *     jaccard: sum(min) <= sum(suffix), sum(a) >= sum(min)  -> sum(suffix) / nb
+         *     dice:    the same                                     -> 2 sum(suffix) / (sum(suffix) + nb)
+         *     js:      the part of a shared feature, p log((p + q) / p) + q log((p + q) / q), is at most
+         *              q + q log(1 + 1 / q) with p <= 1             -> sum of those / 2 log 2
+         */
+        public double suffixBound(double sum, double sumSquares, double jsSum, double nb) {
+            switch (this) {
+                case COSINE:
+                    return Math.sqrt(sumSquares) / nb;
+                case JACCARD:
+                    return sum / nb;
+                case DICE:
+                    return 2 * sum / (sum + nb);
+                default:
+                    return jsSum / (2 * LOG_2);
+            }
+        }
+
+        /** The js term of suffixBound for a normalized weight q. */
+        public static double jsTerm(double q) {
+            return q + q * Math.log(1 + 1 / q);
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = LexemeFeatureKey(lexeme, feature), or with pipeline.ids=true (lexeme id, feature id),
+    ///                      value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
+    ///
+    /// output: <key, value>: key = (lexeme id << 32 | feature id), value = AssocVector
+    ///                       for the features with a positive topk.measure
+    ///
+    public static class VectorMapperClass<K> extends Mapper<K, AssocVector, LongWritable, AssocVector> {
+        private int measure;
+        private WordTable lexemes;
+        private WordTable features;
+
+        private final LongWritable outKey = new LongWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            measure = AssocVector.measure(conf.get(MEASURE_KEY, "pmi"));
+            if (!conf.getBoolean(DictionaryStep.IDS_KEY, false)) {
+                lexemes = DictionaryStep.openCached(DictionaryStep.LEXEMES);
+                features = DictionaryStep.openCached(DictionaryStep.FEATURES);
+            }
+        }
+
+        @Override
+        public void map(K key, AssocVector assoc, Context context) throws IOException, InterruptedException {
+            if (!(assoc.get(measure) > 0)) {
+                context.getCounter("TopK", "NON_POSITIVE_WEIGHTS").increment(1);
+                return;
+            }
+
+            if (lexemes == null) {
+                outKey.set(((LongWritable) key).get());
+            } else {
+                LexemeFeatureKey lexemeFeature = (LexemeFeatureKey) key;
+                Text lexemeWord = lexemeFeature.getLexeme();
+                Text featureWord = lexemeFeature.getFeature();
+                int lexeme = lexemes.find(lexemeWord.getBytes(), 0, lexemeWord.getLength());
+                int feature = features.find(featureWord.getBytes(), 0, featureWord.getLength());
+                if (lexeme < 0 || feature < 0) {
+                    context.getCounter("TopK", "MISSING_IDS").increment(1);
+                    return;
+                }
+                outKey.set(PairCount.pack(lexeme, feature));
+            }
+            context.write(outKey, assoc);
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = (lexeme id, feature id), values = AssocVector
+    ///                      (sorted by feature id, grouped by the lexeme)
+    ///
+    /// output: <key, value>: key = lexeme id, value = SparseVector of all its features
+    ///         index:        key = feature id, value = lexeme id, for the features of the lexeme's indexed prefix
+    ///
+    public static class VectorReducerClass extends Reducer<LongWritable, AssocVector, IntWritable, SparseVector> {
+        private Similarity similarity;
+        private int measure;
+        private double threshold;
+        private WordTable features;
+
+        private MultipleOutputs<IntWritable, SparseVector> outputs;
+        private final IntWritable outKey = new IntWritable();
+        private final SparseVector outValue = new SparseVector();
+        private final IntWritable feature = new IntWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            similarity = Similarity.of(conf);
+            measure = AssocVector.measure(conf.get(MEASURE_KEY, "pmi"));
+            threshold = conf.getDouble(THRESHOLD_KEY, DEFAULT_THRESHOLD);
+            features = DictionaryStep.openCached(DictionaryStep.FEATURES);
+            outputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<AssocVector> values, Context context) throws IOException, InterruptedException {
+            outValue.clear();
+            for (AssocVector value : values) {
+                // The framework refills key for every value
+                outValue.add(PairCount.featureId(key.get()), value);
+            }
+            int lexeme = PairCount.lexemeId(key.get());
+            outKey.set(lexeme);
+            context.write(outKey, outValue);
+
+            int size = outValue.size();
+            double[] measures = outValue.values();
+            double sum = 0;
+            double sumSquares = 0;
+            for (int i = 0; i < size; i++) {
+                double weight = measures[i * AssocVector.SIZE + measure];
+                sum += weight;
+                sumSquares += weight * weight;
+            }
+            double norm = similarity.norm(sum, sumSquares);
+
+            // The global order: rarest feature first, ties by id
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                long countA = features.value(outValue.feature(a));
+                long countB = features.value(outValue.feature(b));
+                return countA != countB ? Long.compare(countA, countB)
+                        : Integer.compare(outValue.feature(a), outValue.feature(b));
+            });
+
+            // Grow the suffix from the end while it can't reach the threshold
+            int prefix = size;
+            double suffixSum = 0;
+            double suffixSquares = 0;
+            double suffixJs = 0;
+            for (int i = size - 1; i >= 0; i--) {
+                double weight = measures[order[i] * AssocVector.SIZE + measure];
+                suffixSum += weight;
+                suffixSquares += weight * weight;
+                suffixJs += Similarity.jsTerm(weight / norm);
+                if (similarity.suffixBound(suffixSum, suffixSquares, suffixJs, norm) >= threshold - SLACK) {
+                    break;
+                }
+                prefix = i;
+            }
+            context.getCounter("TopK", "INDEXED_FEATURES").increment(prefix);
+            context.getCounter("TopK", "SUFFIX_FEATURES").increment(size - prefix);
+
+            for (int i = 0; i < prefix; i++) {
+                feature.set(outValue.feature(order[i]));
+                outputs.write(INDEX, feature, outKey);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            outputs.close();
+        }
+    }
+
+    ///
+    /// Partition by the lexeme id, the top-k job finds a lexeme's MapFile the same way
+    ///
+    public static class VectorPartitionerClass extends Partitioner<LongWritable, AssocVector> {
+
+        @Override
+        public int getPartition(LongWritable key, AssocVector value, int numPartitions) {
+            return PairCount.lexemeId(key.get()) % numPartitions;
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = feature id, values = the lexeme ids that index it
+    ///
+    /// output: <key, value>: key = (lexeme a << 32 | lexeme b), value = none
+    ///                       for every ordered pair of lexemes that index the feature
+    ///
+    public static class PairReducerClass extends Reducer<IntWritable, IntWritable, LongWritable, NullWritable> {
+        private int size;
+        private int[] lexemes = new int[256];
+
+        private final LongWritable outKey = new LongWritable();
+
+        @Override
+        public void reduce(IntWritable key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            size = 0;
+            for (IntWritable value : values) {
+                if (size == lexemes.length) {
+                    lexemes = Arrays.copyOf(lexemes, size * 2);
+                }
+                lexemes[size++] = value.get();
+            }
+
+            for (int i = 0; i < size; i++) {
+                for (int j = i + 1; j < size; j++) {
+                    outKey.set(PairCount.pack(lexemes[i], lexemes[j]));
+                    context.write(outKey, NullWritable.get());
+                    outKey.set(PairCount.pack(lexemes[j], lexemes[i]));
+                    context.write(outKey, NullWritable.get());
+                }
+            }
+            context.getCounter("TopK", "CANDIDATES").increment((long) size * (size - 1));
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = (lexeme b << 32 | lexeme a), values = none
+    ///                      (sorted by a, grouped by b, a candidate repeats for every indexed feature they share)
+    ///
+    /// output: <key, value>: key = lexeme b, value = a1:score a2:score ... for the topk.k best a, best first
+    ///
+    public static class TopKReducerClass extends Reducer<LongWritable, NullWritable, Text, Text> {
+        private Similarity similarity;
+        private int measure;
+        private double threshold;
+        private int k;
+        private WordTable lexemes;
+        private MapFile.Reader[] vectors;
+
+        private final IntWritable id = new IntWritable();
+        private final SparseVector v1 = new SparseVector();
+        private final SparseVector v2 = new SparseVector();
+
+        // Worst of the current top K at the head, ties broken towards the smaller id
+        private final PriorityQueue<Neighbour> best = new PriorityQueue<>(Neighbour.WORST_FIRST);
+
+        private final Text outKey = new Text();
+        private final Text outValue = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            similarity = Similarity.of(conf);
+            measure = AssocVector.measure(conf.get(MEASURE_KEY, "pmi"));
+            threshold = conf.getDouble(THRESHOLD_KEY, DEFAULT_THRESHOLD);
+            k = conf.getInt(K_KEY, DEFAULT_K);
+            lexemes = DictionaryStep.openCached(DictionaryStep.LEXEMES);
+            vectors = VectorStep.openVectors(conf, conf.get(VECTORS_KEY));
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<NullWritable> values, Context context) throws IOException, InterruptedException {
+            int lexeme = PairCount.lexemeId(key.get());
+            lookup(lexeme, v1);
+            best.clear();
+
+            // The framework refills key for every value
+            int last = -1;
+            for (NullWritable ignored : values) {
+                int other = PairCount.featureId(key.get());
+                if (other == last) {
+                    continue;
+                }
+                last = other;
+                lookup(other, v2);
+                double score = score(similarity, measure, v1, v2);
+                context.getCounter("TopK", "SCORED_PAIRS").increment(1);
+                if (score >= threshold) {
+                    offer(other, score);
+                }
+            }
+            if (best.isEmpty()) {
+                return;
+            }
+
+            List<Neighbour> neighbours = new ArrayList<>(best);
+            neighbours.sort(Neighbour.WORST_FIRST.reversed());
+            StringBuilder result = new StringBuilder();
+            for (Neighbour neighbour : neighbours) {
+                if (result.length() > 0) {
+                    result.append(' ');
+                }
+                result.append(lexemes.word(neighbour.id)).append(':').append(neighbour.score);
+            }
+
+            outKey.set(lexemes.word(lexeme));
+            outValue.set(result.toString());
+            context.write(outKey, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (MapFile.Reader reader : vectors) {
+                reader.close();
+            }
+        }
+
+        private void lookup(int lexeme, SparseVector vector) throws IOException {
+            id.set(lexeme);
+            if (vectors[lexeme % vectors.length].get(id, vector) == null) {
+                vector.clear();
+            }
+        }
+
+        private void offer(int id, double score) {
+            if (Double.isNaN(score)) {
+                return;
+            }
+            if (best.size() < k) {
+                best.add(new Neighbour(id, score));
+            } else if (Neighbour.WORST_FIRST.compare(best.peek(), new Neighbour(id, score)) < 0) {
+                best.poll();
+                best.add(new Neighbour(id, score));
+            }
+        }
+    }
+
+    /**
+     * The similarity of two full vectors over one measure, merging their features by id.
+     */
+    static double score(Similarity similarity, int measure, SparseVector a, SparseVector b) {
+        final int m = AssocVector.SIZE;
+        double[] x = a.values();
+        double[] y = b.values();
+        double sumA = 0;
+        double squaresA = 0;
+        for (int i = 0; i < a.size(); i++) {
+            sumA += x[i * m + measure];
+            squaresA += x[i * m + measure] * x[i * m + measure];
+        }
+        double sumB = 0;
+        double squaresB = 0;
+        for (int j = 0; j < b.size(); j++) {
+            sumB += y[j * m + measure];
+            squaresB += y[j * m + measure] * y[j * m + measure];
+        }
+        double na = similarity.norm(sumA, squaresA);
+        double nb = similarity.norm(sumB, squaresB);
+
+        double shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            int fa = a.feature(i);
+            int fb = b.feature(j);
+            if (fa == fb) {
+                shared += similarity.shared(x[i * m + measure], y[j * m + measure], na, nb);
+                i++;
+                j++;
+            } else if (fa < fb) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return similarity.score(shared, na, nb);
+    }
+
+    private static class Neighbour {
+        static final Comparator<Neighbour> WORST_FIRST = (a, b) -> a.score != b.score
+                ? Double.compare(a.score, b.score) : Integer.compare(b.id, a.id);
+
+        final int id;
+        final double score;
+
+        Neighbour(int id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    ///
+    /// Partition and group (b << 32 | a) by b
+    ///
+    public static class PartitionerClass extends Partitioner<LongWritable, NullWritable> {
+
+        @Override
+        public int getPartition(LongWritable key, NullWritable value, int numPartitions) {
+            return PairCount.lexemeId(key.get()) % numPartitions;
+        }
+    }
+
+    public static class GroupingComparator extends WritableComparator {
+        protected GroupingComparator() {
+            super(LongWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Long.compare(readLong(b1, s1) >>> 32, readLong(b2, s2) >>> 32);
+        }
+    }
+
+    public static Job createVectorJob(Configuration conf, String inputPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "TopKStep vectors");
+
+        job.setJarByClass(TopKStep.class);
+        job.setMapperClass(VectorMapperClass.class);
+        job.setReducerClass(VectorReducerClass.class);
+        job.setPartitionerClass(VectorPartitionerClass.class);
+        job.setGroupingComparatorClass(VectorStep.GroupingComparator.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(AssocVector.class);
+
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(SparseVector.class);
+        job.setOutputFormatClass(MapFileOutputFormat.class);
+        MultipleOutputs.addNamedOutput(job, INDEX, BlockSequenceFileOutputFormat.class, IntWritable.class, IntWritable.class);
+        // Each vector is compressed on its own, a lookup would otherwise inflate a whole block (not the index)
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.RECORD);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        DictionaryStep.addToCache(job, conf.get(DictionaryStep.DICTIONARY_KEY));
+
+        FileInputFormat.addInputPath(job, new Path(inputPath + "part-r*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static Job createPairJob(Configuration conf, String vectorsPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "TopKStep pairs");
+
+        job.setJarByClass(TopKStep.class);
+        job.setMapperClass(Mapper.class);
+        job.setReducerClass(PairReducerClass.class);
+
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(IntWritable.class);
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(NullWritable.class);
+        sequenceFileOutput(job);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, new Path(vectorsPath + INDEX + "-r-*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static Job createTopKJob(Configuration conf, String inputPath, String vectorsPath, String outputPath) throws IOException {
+        conf.set(VECTORS_KEY, vectorsPath);
+        Job job = Job.getInstance(conf, "TopKStep");
+
+        job.setJarByClass(TopKStep.class);
+        job.setMapperClass(Mapper.class);
+        job.setCombinerClass(SignatureStep.DistinctReducerClass.class);
+        job.setReducerClass(TopKReducerClass.class);
+        job.setPartitionerClass(PartitionerClass.class);
+        job.setGroupingComparatorClass(GroupingComparator.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(NullWritable.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        DictionaryStep.addToCache(job, conf.get(DictionaryStep.DICTIONARY_KEY));
+
+        FileInputFormat.addInputPath(job, new Path(inputPath + "part-r*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    private static void sequenceFileOutput(Job job) {
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] TOP K STEP started!");
+
+        String inputPath = args[2];
+        String workPath = args[3].endsWith("/") ? args[3] : args[3] + "/";
+        String outputPath = args[4];
+        String dictionaryPath = args[5];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 6);
+        conf.set(DictionaryStep.DICTIONARY_KEY, dictionaryPath);
+
+        boolean success = createVectorJob(new Configuration(conf), inputPath, workPath + "vectors").waitForCompletion(true)
+                && createPairJob(new Configuration(conf), workPath + "vectors/", workPath + "pairs").waitForCompletion(true)
+                && createTopKJob(new Configuration(conf), workPath + "pairs/", workPath + "vectors", outputPath).waitForCompletion(true);
+        System.exit(success ? 0 : 1);
+    }
+}
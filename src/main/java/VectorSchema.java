@@ -0,0 +1,81 @@
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The Weka attributes of a Step4 similarity vector: the 24 values in the order of the diff matrix rows,
+ * then the class. Step5 writes its ARFF header from it, and SimilarityService classifies with it.
+ */
+class VectorSchema {
+    public static final String RELATION = "semantic_similarity";
+    public static final String SIMILAR = "similar";
+    public static final String NOT_SIMILAR = "not-similar";
+
+    public static final String[] ATTRIBUTES = { "freq_distManhattan", "freq_distEuclidean", "freq_simCosine", "freq_simJaccard",
+            "freq_simDice", "freq_simJS",
+            "prob_distManhattan", "prob_distEuclidean", "prob_simCosine", "prob_simJaccard", "prob_simDice",
+            "prob_simJS",
+            "PMI_distManhattan", "PMI_distEuclidean", "PMI_simCosine", "PMI_simJaccard", "PMI_simDice", "PMI_simJS",
+            "t-test_distManhattan", "t-test_distEuclidean", "t-test_simCosine", "t-test_simJaccard",
+            "t-test_simDice", "t-test_simJS" };
+
+    /**
+     * An empty data set with the 24 numeric attributes and the class {similar, not-similar} last.
+     */
+    public static Instances header() {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (String name : ATTRIBUTES) {
+            attributes.add(new Attribute(name));
+        }
+        attributes.add(new Attribute("class", Arrays.asList(SIMILAR, NOT_SIMILAR)));
+
+        Instances header = new Instances(RELATION, attributes, 0);
+        header.setClassIndex(header.numAttributes() - 1);
+        return header;
+    }
+
+    /**
+     * Parse the Step4 value "[v1, v2, ...]" into out, false if it doesn't hold exactly 24 numbers.
+     */
+    public static boolean parse(String text, double[] out) {
+        int start = text.indexOf('[') + 1;
+        int end = text.lastIndexOf(']');
+        if (end < start) {
+            end = text.length();
+        }
+        int n = 0;
+        while (start < end) {
+            int comma = text.indexOf(',', start);
+            if (comma < 0 || comma > end) {
+                comma = end;
+            }
+            if (n == ATTRIBUTES.length) {
+                return false;
+            }
+            try {
+                out[n++] = Double.parseDouble(text.substring(start, comma).trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            start = comma + 1;
+        }
+        return n == ATTRIBUTES.length;
+    }
+
+    /**
+     * An instance of the data set with a missing class. NaN values are missing values for Weka,
+     * as they are when Step5 reads them from the ARFF.
+     */
+    public static Instance instance(Instances dataset, double[] similarity) {
+        double[] values = Arrays.copyOf(similarity, ATTRIBUTES.length + 1);
+        values[ATTRIBUTES.length] = Utils.missingValue();
+        Instance instance = new DenseInstance(1, values);
+        instance.setDataset(dataset);
+        return instance;
+    }
+}
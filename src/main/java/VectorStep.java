@@ -0,0 +1,343 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+///
+/// Alternative to Step4 in two jobs, run after DictionaryStep.
+///
+/// The vectors job writes the features of every gold standard word once, as a SparseVector sorted by feature id,
+/// into MapFiles keyed by the word. Step4 shuffles every (lexeme, feature) record once per gold pair of the lexeme,
+/// here it is shuffled once.
+///
+/// The pairs job is map-only over the gold standard file: every mapper looks both words of its pairs up in the
+/// MapFiles and merge joins the two vectors. Its output is the same as Step4's and goes to Step5.
+///
+public class VectorStep {
+    public static final String VECTORS_KEY = "vectors.path";
+    public static final String PAIRS_PER_MAP_KEY = "vectors.pairsPerMap";
+    public static final int DEFAULT_PAIRS_PER_MAP = 2000;
+
+    ///
+    /// input: <key, value>: key = LexemeFeatureKey(lexeme, feature), or with pipeline.ids=true (lexeme id, feature id),
+    ///                      value = AssocVector(assoc_freq, assoc_prob, assoc_PMI, assoc_t_test)
+    ///
+    /// output: <key, value>: key = (gold word index << 32 | feature id), value = AssocVector
+    ///                       (only gold standard lexemes)
+    ///
+    public static class MapperClass<K> extends Mapper<K, AssocVector, LongWritable, AssocVector> {
+        private GoldStandardIndex gold;
+        private GoldStandardIndex.IdLookup goldIds;
+        private WordTable features;
+
+        private final LongWritable outKey = new LongWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            try (BufferedReader reader = GoldStandard.open(conf, conf.get(GoldStandard.PATH_KEY))) {
+                gold = GoldStandardIndex.read(reader);
+            }
+
+            if (conf.getBoolean(DictionaryStep.IDS_KEY, false)) {
+                goldIds = gold.byLexemeId(DictionaryStep.openCached(DictionaryStep.LEXEMES));
+            } else {
+                features = DictionaryStep.openCached(DictionaryStep.FEATURES);
+            }
+        }
+
+        @Override
+        public void map(K key, AssocVector assoc, Context context) throws IOException, InterruptedException {
+            int word;
+            int feature;
+            if (goldIds != null) {
+                long pair = ((LongWritable) key).get();
+                word = goldIds.find(PairCount.lexemeId(pair));
+                feature = PairCount.featureId(pair);
+            } else {
+                LexemeFeatureKey lexemeFeature = (LexemeFeatureKey) key;
+                word = gold.find(lexemeFeature.getLexeme());
+                if (word < 0) {
+                    return;
+                }
+                Text featureWord = lexemeFeature.getFeature();
+                feature = features.find(featureWord.getBytes(), 0, featureWord.getLength());
+                if (feature < 0) {
+                    context.getCounter("Vectors", "MISSING_FEATURE").increment(1);
+                    return;
+                }
+            }
+            if (word < 0) {
+                return;
+            }
+
+            outKey.set(PairCount.pack(word, feature));
+            context.write(outKey, assoc);
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = (gold word index, feature id), values = AssocVector
+    ///                      (sorted by feature id, grouped by the word)
+    ///
+    /// output: <key, value>: key = word, value = SparseVector of all its features
+    ///
+    public static class ReducerClass extends Reducer<LongWritable, AssocVector, Text, SparseVector> {
+        private GoldStandardIndex gold;
+
+        private final Text outKey = new Text();
+        private final SparseVector outValue = new SparseVector();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            try (BufferedReader reader = GoldStandard.open(conf, conf.get(GoldStandard.PATH_KEY))) {
+                gold = GoldStandardIndex.read(reader);
+            }
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<AssocVector> values, Context context) throws IOException, InterruptedException {
+            outValue.clear();
+            for (AssocVector value : values) {
+                // The framework refills key for every value
+                outValue.add(PairCount.featureId(key.get()), value);
+            }
+
+            outKey.set(gold.word(PairCount.lexemeId(key.get())));
+            context.write(outKey, outValue);
+            context.getCounter("Vectors", "FEATURES").increment(outValue.size());
+        }
+    }
+
+    ///
+    /// Partition by the gold word index, the pairs job finds a word's MapFile the same way
+    ///
+    public static class PartitionerClass extends Partitioner<LongWritable, AssocVector> {
+
+        @Override
+        public int getPartition(LongWritable key, AssocVector value, int numPartitions) {
+            return PairCount.lexemeId(key.get()) % numPartitions;
+        }
+    }
+
+    ///
+    /// Groups (word << 32 | feature) on the word
+    ///
+    public static class GroupingComparator extends WritableComparator {
+        protected GroupingComparator() {
+            super(LongWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Long.compare(readLong(b1, s1) >>> 32, readLong(b2, s2) >>> 32);
+        }
+    }
+
+    ///
+    /// input: <key, value>: key = offset of the line in the gold standard file, value = w1 w2 isRelated
+    ///
+    /// output: <key, value>: key = w1 w2 isRelated,
+    ///                      value = 24-dimensioned similarity vector
+    ///
+    public static class PairMapperClass extends Mapper<LongWritable, Text, Text, Text> {
+        private GoldStandardIndex gold;
+        private MapFile.Reader[] vectors;
+
+        // "w1 w2" -> offset of its first line, a pair that is repeated in the file is only written once, as in Step4
+        private final Map<String, Long> firstLine = new HashMap<>();
+
+        private final String[] pair = new String[3];
+        private final Text word = new Text();
+        private final SparseVector v1 = new SparseVector();
+        private final SparseVector v2 = new SparseVector();
+        private final SimilarityKernel kernel = new SimilarityKernel();
+        private final double[] similarity = new double[SimilarityKernel.DIMENSIONS];
+
+        private final Text outKey = new Text();
+        private final Text outValue = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            try (BufferedReader reader = GoldStandard.openCached()) {
+                gold = GoldStandardIndex.read(reader);
+            }
+
+            // Same line reader as the input format, so the offsets match the input keys
+            try (InputStream in = new FileInputStream(GoldStandard.CACHE_NAME)) {
+                LineReader lines = new LineReader(in, conf);
+                Text line = new Text();
+                long offset = 0;
+                int length;
+                while ((length = lines.readLine(line)) > 0) {
+                    long lineOffset = offset;
+                    GoldStandard.parse(line.toString(),
+                            (word1, word2, isRelated) -> firstLine.putIfAbsent(word1 + " " + word2, lineOffset));
+                    offset += length;
+                }
+            }
+
+            vectors = openVectors(conf, conf.get(VECTORS_KEY));
+        }
+
+        @Override
+        public void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+            boolean valid = GoldStandard.parse(line.toString(), (word1, word2, isRelated) -> {
+                pair[0] = word1;
+                pair[1] = word2;
+                pair[2] = isRelated;
+            });
+            String key = pair[0] + " " + pair[1];
+            if (!valid || firstLine.get(key) != offset.get()) {
+                return;
+            }
+
+            boolean found1 = lookup(pair[0], v1);
+            boolean found2 = lookup(pair[1], v2);
+            if (!found1 && !found2) {
+                context.getCounter("Vectors", "PAIRS_WITHOUT_FEATURES").increment(1);
+                return;
+            }
+
+            SparseVector.similarity(v1, v2, kernel);
+            kernel.result(similarity);
+            kernel.reset();
+
+            outKey.set(key + " " + pair[2]);
+            outValue.set(Arrays.toString(similarity));
+            context.write(outKey, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            for (MapFile.Reader reader : vectors) {
+                reader.close();
+            }
+        }
+
+        /**
+         * Read the vector of a gold word, false (and an empty vector) if it has no features.
+         */
+        private boolean lookup(String gold, SparseVector vector) throws IOException {
+            word.set(gold);
+            int index = this.gold.find(word);
+            if (index < 0 || vectors.length == 0
+                    || vectors[index % vectors.length].get(word, vector) == null) {
+                vector.clear();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * One reader per part-r MapFile of a vectors job, in partition order.
+     */
+    static MapFile.Reader[] openVectors(Configuration conf, String vectorsPath) throws IOException {
+        FileSystem fs = FileSystem.get(URI.create(vectorsPath), conf);
+        FileStatus[] parts = fs.globStatus(new Path(vectorsPath, "part-r-*"));
+        Arrays.sort(parts);
+        MapFile.Reader[] readers = new MapFile.Reader[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            readers[i] = new MapFile.Reader(parts[i].getPath(), conf);
+        }
+        return readers;
+    }
+
+    public static Job createJob(Configuration conf, String inputPath, String outputPath) throws IOException {
+        Job job = Job.getInstance(conf, "VectorStep");
+
+        job.setJarByClass(VectorStep.class);
+        job.setMapperClass(MapperClass.class);
+        job.setReducerClass(ReducerClass.class);
+        job.setPartitionerClass(PartitionerClass.class);
+        job.setGroupingComparatorClass(GroupingComparator.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(AssocVector.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(SparseVector.class);
+        job.setOutputFormatClass(MapFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        DictionaryStep.addToCache(job, conf.get(DictionaryStep.DICTIONARY_KEY));
+
+        FileInputFormat.addInputPath(job, new Path(inputPath + "part-r*"));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static Job createPairJob(Configuration conf, String vectorsPath, String outputPath) throws IOException {
+        conf.set(VECTORS_KEY, vectorsPath);
+        Job job = Job.getInstance(conf, "VectorStep pairs");
+
+        job.setJarByClass(VectorStep.class);
+        job.setMapperClass(PairMapperClass.class);
+        job.setNumReduceTasks(1); // only sorts the output into one part-r file for Step5
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        String goldStandardPath = conf.get(GoldStandard.PATH_KEY);
+        job.setInputFormatClass(NLineInputFormat.class);
+        NLineInputFormat.setNumLinesPerSplit(job, conf.getInt(PAIRS_PER_MAP_KEY, DEFAULT_PAIRS_PER_MAP));
+        GoldStandard.addToCache(job, goldStandardPath);
+
+        FileInputFormat.addInputPath(job, new Path(goldStandardPath));
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+        return job;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("[DEBUG] VECTOR STEP started!");
+
+        String inputPath = args[2];
+        String vectorsPath = args[3];
+        String outputPath = args[4];
+        String goldStandardPath = args[5];
+        String dictionaryPath = args[6];
+
+        Configuration conf = new Configuration();
+        PipelineOptions.apply(conf, args, 7);
+        conf.set(GoldStandard.PATH_KEY, goldStandardPath);
+        conf.set(DictionaryStep.DICTIONARY_KEY, dictionaryPath);
+
+        if (!createJob(new Configuration(conf), inputPath, vectorsPath).waitForCompletion(true)) {
+            System.exit(1);
+        }
+
+        boolean success = createPairJob(new Configuration(conf), vectorsPath, outputPath).waitForCompletion(true);
+        System.exit(success ? 0 : 1);
+    }
+}
@@ -4,17 +4,13 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.FileWriter;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.services.s3.model.S3ObjectInputStream;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.AmazonS3;
 
 import weka.core.converters.ConverterUtils.DataSource;
@@ -30,45 +26,21 @@ public class WekaModel {
                                                 .withRegion("us-east-1")
                                                 .build();
 
-    private static List<String> listPartFiles(String bucketName, String s3InputFolder, String s3OutputFolder)
-            throws AmazonClientException {
-
-        List<String> partFiles = new ArrayList<>();
-        ObjectListing objectListing = s3Client.listObjects(bucketName, s3InputFolder);
-
-        do {
-            for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
-                String key = summary.getKey();
-                // Only pick files that start with "part-r"
-                if (key.startsWith(s3InputFolder + "part-r")) {
-                    partFiles.add(key);
-                }
-            }
-            objectListing = s3Client.listNextBatchOfObjects(objectListing);
-        } while (objectListing.isTruncated());
-
-        return partFiles;
-    }
-
-    private static File createArffFile(List<String> partFiles, String bucketName, String s3OutputFolder) {
+    private static File createArffFile(PartFileFetcher fetcher, List<PartFileFetcher.Part> partFiles, String s3OutputFolder) {
         File arffFile = new File(s3OutputFolder + "WekaModel_input_data.arff");
         try (BufferedWriter arffWriter = new BufferedWriter(new FileWriter(arffFile))) {
 
             writeArffHeader(arffWriter);
 
-            // Read the content of each part file from S3 and write to ARFF
-            for (String key : partFiles) {
-                try (S3Object s3Object = s3Client.getObject(bucketName, key);
-                     S3ObjectInputStream s3ObjectInputStream = s3Object.getObjectContent();
-                     BufferedReader br = new BufferedReader(new InputStreamReader(s3ObjectInputStream))) {
-
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        processLine(line, arffWriter);
-                    }
+            // Read the content of each part file from S3 and write to ARFF, the next ones download meanwhile
+            fetcher.forEach(partFiles, (part, in) -> {
+                BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    processLine(line, arffWriter);
                 }
-            }
-        } catch (IOException e) {
+            });
+        } catch (Exception e) {
             System.err.println("[ERROR] Failed to write ARFF file: " + e.getMessage());
         }
 
@@ -186,9 +158,11 @@ public class WekaModel {
 
         try{
 
-            List<String> partFiles = listPartFiles(bucketName, s3InputFolder, s3OutputFolder);
+            PartFileFetcher fetcher = new PartFileFetcher(PartFileFetcher.s3(s3Client, bucketName),
+                    PartFileFetcher.DEFAULT_PARALLELISM, PartFileFetcher.DEFAULT_RANGE_SIZE);
+            List<PartFileFetcher.Part> partFiles = fetcher.list(s3InputFolder, "part-r");
 
-            File arffFile = createArffFile(partFiles, bucketName, s3OutputFolder);
+            File arffFile = createArffFile(fetcher, partFiles, s3OutputFolder);
 
             evaluateClassifier(arffFile, s3OutputFolder);
 
@@ -0,0 +1,188 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Read-only table of distinct words in byte order, each with a long value (e.g. its count).
+ * The index of a word in the table is its dense int id.
+ *
+ * File layout:
+ *     word bytes, concatenated
+ *     int offsets[n + 1]    start of every word in the data, plus the end of the last one
+ *     long values[n]
+ *     int n, long data length, int MAGIC
+ *
+ * The file is memory mapped, so opening it costs nothing and lookups are binary searches over the mapping.
+ */
+class WordTable {
+    private static final int MAGIC = 0x57544231; // "WTB1"
+    private static final int TRAILER = 4 + 8 + 4;
+
+    private final ByteBuffer data;
+    private final int size;
+    private final int offsetsStart;
+    private final int valuesStart;
+
+    private WordTable(ByteBuffer data) throws IOException {
+        this.data = data;
+        int end = data.limit();
+        if (end < TRAILER || data.getInt(end - 4) != MAGIC) {
+            throw new IOException("Not a word table");
+        }
+        size = data.getInt(end - TRAILER);
+        offsetsStart = (int) data.getLong(end - TRAILER + 4);
+        valuesStart = offsetsStart + 4 * (size + 1);
+    }
+
+    /**
+     * Memory map a local table file.
+     */
+    public static WordTable open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Word table too large to map: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new WordTable(buffer);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the id of the word bytes[start, start + length) or -1 if it isn't in the table.
+     */
+    public int find(byte[] bytes, int start, int length) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(mid, bytes, start, length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int find(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        return find(bytes, 0, bytes.length);
+    }
+
+    public long value(int id) {
+        return data.getLong(valuesStart + 8 * id);
+    }
+
+    public String word(int id) {
+        int start = data.getInt(offsetsStart + 4 * id);
+        int end = data.getInt(offsetsStart + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        for (int p = 0; p < bytes.length; p++) {
+            bytes[p] = data.get(start + p);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* Unsigned byte order, same as Text.compareTo */
+    private int compare(int id, byte[] bytes, int start, int length) {
+        int wordStart = data.getInt(offsetsStart + 4 * id);
+        int wordLength = data.getInt(offsetsStart + 4 * (id + 1)) - wordStart;
+        int n = Math.min(wordLength, length);
+        for (int p = 0; p < n; p++) {
+            int a = data.get(wordStart + p) & 0xff;
+            int b = bytes[start + p] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return wordLength - length;
+    }
+
+    /**
+     * Streams a table out, words must be added in ascending byte order without duplicates.
+     */
+    public static class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+        private int[] offsets = new int[1024];
+        private long[] values = new long[1024];
+        private int size;
+        private long dataLength;
+
+        private byte[] last = new byte[0];
+        private int lastLength = -1;
+
+        public Writer(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        public int add(byte[] bytes, int start, int length, long value) throws IOException {
+            if (lastLength >= 0 && compareToLast(bytes, start, length) <= 0) {
+                throw new IOException("Words must be added in ascending order");
+            }
+            if (dataLength + length > Integer.MAX_VALUE) {
+                throw new IOException("Word table too large");
+            }
+            if (size + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            out.write(bytes, start, length);
+            offsets[size] = (int) dataLength;
+            values[size] = value;
+            dataLength += length;
+
+            if (last.length < length) {
+                last = new byte[Math.max(length, last.length * 2)];
+            }
+            System.arraycopy(bytes, start, last, 0, length);
+            lastLength = length;
+            return size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            offsets[size] = (int) dataLength;
+            for (int i = 0; i <= size; i++) {
+                out.writeInt(offsets[i]);
+            }
+            for (int i = 0; i < size; i++) {
+                out.writeLong(values[i]);
+            }
+            out.writeInt(size);
+            out.writeLong(dataLength);
+            out.writeInt(MAGIC);
+            out.close();
+        }
+
+        private int compareToLast(byte[] bytes, int start, int length) {
+            int n = Math.min(lastLength, length);
+            for (int p = 0; p < n; p++) {
+                int a = bytes[start + p] & 0xff;
+                int b = last[p] & 0xff;
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return length - lastLength;
+        }
+    }
+}